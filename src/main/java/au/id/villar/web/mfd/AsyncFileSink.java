@@ -0,0 +1,298 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Persists part bodies to files using {@link java.nio.channels.AsynchronousFileChannel}, so parsing and disk writes
+ * overlap: while a filled buffer is being written, the parser fills the next one. The sink owns a fixed pool of direct
+ * buffers (its queue depth); the parser only waits when all of them are being written. The same sink can be shared by
+ * several parts, and by several requests, bounding the memory used by all of them.
+ * <p>
+ * Example, inside a {@link MultipartProcessorListener}:
+ * <pre>{@code
+ * CompletableFuture<Long> written = sink.write(part, storageDir.resolve(part.getFilename()));
+ * }</pre>
+ * The listener can return as soon as {@link AsyncFileSink#write(Part, Path)} does; the returned future completes
+ * when the file is fully written and closed.
+ * <p>
+ * Closing the sink frees its buffers, giving them back to its memory budget, if any. Buffers still being written are
+ * freed as soon as their writes complete.
+ */
+public final class AsyncFileSink implements Closeable {
+
+    private static final long CLOSE_CHECK_MILLIS = 100;
+
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+    private final int bufferSize;
+    private final int queueDepth;
+    private final MemoryBudget budget;
+    private final AtomicInteger allocated = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Creates a sink with the given number of buffers.
+     * @param bufferSize size of each buffer, in bytes.
+     * @param queueDepth number of buffers, i.e. the maximum number of writes in flight plus one being filled.
+     */
+    public AsyncFileSink(int bufferSize, int queueDepth) {
+        this(bufferSize, queueDepth, null);
+    }
+
+    /**
+     * Creates a sink with up to the given number of buffers, reserved from the given budget. Buffers are only allocated
+     * when needed and while the budget allows it; once allocated, they stay reserved for the life of the sink. When the
+     * budget is exhausted the sink just keeps fewer writes in flight, only waiting for the budget (up to its maximum
+     * wait) for its first buffer.
+     * @param bufferSize size of each buffer, in bytes.
+     * @param queueDepth maximum number of buffers, i.e. the maximum number of writes in flight plus one being filled.
+     * @param budget the {@link MemoryBudget} to reserve the buffers from, or {@code null} to allocate them all upfront.
+     */
+    public AsyncFileSink(int bufferSize, int queueDepth, MemoryBudget budget) {
+        if (bufferSize <= 0 || queueDepth <= 0) {
+            throw new IllegalArgumentException("Buffer size and queue depth must be positive");
+        }
+        this.freeBuffers = new ArrayBlockingQueue<>(queueDepth);
+        this.bufferSize = bufferSize;
+        this.queueDepth = queueDepth;
+        this.budget = budget;
+        if (budget == null) {
+            for (int x = 0; x < queueDepth; x++) {
+                freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+            }
+            allocated.set(queueDepth);
+        }
+    }
+
+    /**
+     * Reads the rest of the given part's body and writes it to the given file, which is created or truncated. This
+     * method returns once the whole body has been read, while the last writes may still be in flight.
+     * @param part the part whose body is to be persisted.
+     * @param target the file to write to.
+     * @return a {@link java.util.concurrent.CompletableFuture} completed with the number of bytes written once the file
+     * is closed, or completed exceptionally if the file couldn't be opened, written or closed.
+     * @throws IOException If the sink is closed, if reading the part's body throws this exception, if the thread is
+     * interrupted while waiting for a free buffer, or if the sink's first buffer can't be reserved from its memory
+     * budget.
+     */
+    public CompletableFuture<Long> write(Part part, Path target) throws IOException {
+        if (closed) {
+            throw new IOException("Sink closed");
+        }
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        AsynchronousFileChannel file;
+        try {
+            file = AsynchronousFileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        PartWrite write = new PartWrite(file, result);
+        ReadableByteChannel body = part.getBodyChannel();
+        long position = 0;
+        ByteBuffer buffer = null;
+        try {
+            boolean eof = false;
+            while (!eof && write.error.get() == null) {
+                buffer = takeBuffer();
+                while (buffer.hasRemaining()) {
+                    if (body.read(buffer) == -1) {
+                        eof = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                if (buffer.hasRemaining()) {
+                    int length = buffer.remaining();
+                    write.submit(buffer, position);
+                    position += length;
+                } else {
+                    release(buffer);
+                }
+                buffer = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (buffer != null) {
+                release(buffer);
+            }
+            write.fail(e);
+            throw e;
+        } finally {
+            write.size = position;
+            write.done();
+        }
+        return result;
+    }
+
+    /**
+     * Closes this sink, freeing its buffers and giving them back to its memory budget, if any. Writes in flight are not
+     * affected; their buffers are freed once they complete. Writers waiting for a free buffer fail shortly after.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        while (freeBuffers.poll() != null) {
+            discard();
+        }
+    }
+
+    private ByteBuffer takeBuffer() throws IOException {
+        if (closed) {
+            throw new IOException("Sink closed");
+        }
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        int count;
+        while ((count = allocated.get()) < queueDepth) {
+            if (allocated.compareAndSet(count, count + 1)) {
+                if (count == 0) {
+                    reserveFirst();
+                } else if (!budget.tryReserve(bufferSize)) {
+                    allocated.decrementAndGet();
+                    break;
+                }
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+        }
+        try {
+            // polls, rather than waiting indefinitely, so a writer still waiting when the sink is closed gives up
+            while ((buffer = freeBuffers.poll(CLOSE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                if (closed) {
+                    throw new IOException("Sink closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a free buffer");
+        }
+        if (closed) {
+            release(buffer);
+            throw new IOException("Sink closed");
+        }
+        return buffer;
+    }
+
+    private void reserveFirst() throws IOException {
+        try {
+            budget.reserve(bufferSize);
+        } catch (IOException e) {
+            allocated.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void release(ByteBuffer buffer) {
+        buffer.clear();
+        freeBuffers.add(buffer);
+        if (closed && freeBuffers.remove(buffer)) {
+            // closed while the buffer was in use
+            discard();
+        }
+    }
+
+    private void discard() {
+        allocated.decrementAndGet();
+        if (budget != null) {
+            budget.release(bufferSize);
+        }
+    }
+
+    private final class PartWrite {
+
+        private final AsynchronousFileChannel file;
+        private final CompletableFuture<Long> result;
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        // one for each write in flight, plus one held by the reader until it is done
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private volatile long size;
+
+        private PartWrite(AsynchronousFileChannel file, CompletableFuture<Long> result) {
+            this.file = file;
+            this.result = result;
+        }
+
+        private void submit(ByteBuffer buffer, long position) {
+            pending.incrementAndGet();
+            file.write(buffer, position, buffer, new CompletionHandler<>() {
+
+                private long nextPosition = position;
+
+                @Override
+                public void completed(Integer written, ByteBuffer attachment) {
+                    nextPosition += written;
+                    if (attachment.hasRemaining() && error.get() == null) {
+                        file.write(attachment, nextPosition, attachment, this);
+                        return;
+                    }
+                    release(attachment);
+                    done();
+                }
+
+                @Override
+                public void failed(Throwable e, ByteBuffer attachment) {
+                    fail(e);
+                    release(attachment);
+                    done();
+                }
+
+            });
+        }
+
+        private void fail(Throwable e) {
+            error.compareAndSet(null, e);
+        }
+
+        private void done() {
+            if (pending.decrementAndGet() != 0) {
+                return;
+            }
+            try {
+                file.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+            Throwable e = error.get();
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(size);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Storage for part bodies where each content is stored only once, in a path derived from its hash
+ * ({@code root/ab/cd/abcd...}). The body is written to a temporary file in the root directory while it is hashed, in a
+ * single pass; then it is published with a hard link, which fails if that content already exists, and deleted.
+ * <p>
+ * A small in-memory LRU index of recently seen hashes answers whether a content is already stored without touching the
+ * disk. The store assumes stored files are never deleted by others while it is in use. Instances are thread-safe.
+ */
+public final class ContentAddressedStore {
+
+    private final Path root;
+    private final String algorithm;
+    private final Map<String, Long> index;
+
+    /**
+     * Creates a store using SHA-256 and an index of up to 10000 hashes.
+     * @param root the directory where contents are stored.
+     * @throws IOException if the directory doesn't exist and can't be created.
+     */
+    public ContentAddressedStore(Path root) throws IOException {
+        this(root, "SHA-256", 10_000);
+    }
+
+    /**
+     * Creates a store.
+     * @param root the directory where contents are stored.
+     * @param algorithm the name of the {@link java.security.MessageDigest} algorithm used to hash contents.
+     * @param indexSize the maximum number of hashes kept in the in-memory index.
+     * @throws IOException if the directory doesn't exist and can't be created.
+     * @throws IllegalArgumentException if the algorithm is not supported.
+     */
+    public ContentAddressedStore(Path root, String algorithm, int indexSize) throws IOException {
+        this.root = Files.createDirectories(root);
+        this.algorithm = algorithm;
+        newDigest();
+        this.index = new LinkedHashMap<>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > indexSize;
+            }
+
+        };
+    }
+
+    /**
+     * Stores the rest of the given part's body, unless the same content is already stored.
+     * @param part the part whose body is to be stored.
+     * @return A {@link StoredContent} with the hash, size and path of the content.
+     * @throws IOException if reading the part's body, or writing or linking the file throws this exception.
+     */
+    public StoredContent store(Part part) throws IOException {
+        MessageDigest digest = newDigest();
+        Path temp = Files.createTempFile(root, "upload-", ".tmp");
+        try {
+            long size;
+            try (OutputStream file = Files.newOutputStream(temp)) {
+                size = part.getBodyStream().transferTo(new OutputStream() {
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        digest.update((byte)b);
+                        file.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] bytes, int offset, int length) throws IOException {
+                        digest.update(bytes, offset, length);
+                        file.write(bytes, offset, length);
+                    }
+
+                });
+            }
+            String hash = HexFormat.of().formatHex(digest.digest());
+            Path target = pathFor(hash);
+
+            if (isIndexed(hash) || Files.exists(target)) {
+                remember(hash, size);
+                return new StoredContent(hash, size, target, true);
+            }
+            Files.createDirectories(target.getParent());
+            try {
+                // unlike a move, which may silently replace the target, a link fails if another upload got there first
+                Files.createLink(target, temp);
+            } catch (FileAlreadyExistsException e) {
+                remember(hash, size);
+                return new StoredContent(hash, size, target, true);
+            } catch (UnsupportedOperationException e) {
+                throw new IOException("The store directory doesn't support hard links", e);
+            }
+            remember(hash, size);
+            return new StoredContent(hash, size, target, false);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Tells whether a content with the given hash is stored, looking first at the in-memory index.
+     * @param hash the hash of the content, as lowercase hexadecimal.
+     * @return {@code true} if the content is stored.
+     */
+    public boolean contains(String hash) {
+        return isIndexed(hash) || Files.exists(pathFor(hash));
+    }
+
+    /**
+     * Returns the path where the content with the given hash is, or would be, stored.
+     * @param hash the hash of the content, as lowercase hexadecimal.
+     * @return the path for the content.
+     */
+    public Path pathFor(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    private boolean isIndexed(String hash) {
+        synchronized (index) {
+            return index.get(hash) != null;
+        }
+    }
+
+    private void remember(String hash, long size) {
+        synchronized (index) {
+            index.put(hash, size);
+        }
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported hash algorithm: " + algorithm, e);
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.util.Arrays;
+
+/**
+ * Knuth-Morris-Pratt automaton to find a delimiter. The state is the number of bytes of the delimiter matched so far;
+ * on a mismatch it falls back to the longest prefix of the delimiter which is still a suffix of what was read, instead
+ * of starting over, so every byte is read only once and the work is linear in the input no matter how many near
+ * misses (or self-overlapping delimiters) it contains.
+ */
+final class DelimiterMatcher {
+
+    private final byte[] delimiter;
+    private final int[] fallback;
+
+    DelimiterMatcher(byte[] delimiter) {
+        this.delimiter = delimiter;
+        this.fallback = new int[delimiter.length];
+        int border = 0;
+        for (int x = 1; x < delimiter.length; x++) {
+            while (border > 0 && delimiter[x] != delimiter[border]) {
+                border = fallback[border - 1];
+            }
+            if (delimiter[x] == delimiter[border]) {
+                border++;
+            }
+            fallback[x] = border;
+        }
+    }
+
+    DelimiterMatcher(int[] delimiter) {
+        this(toBytes(delimiter));
+    }
+
+    int length() {
+        return delimiter.length;
+    }
+
+    /**
+     * Returns the state after reading the given byte in the given state. A state equal to {@link #length()} means the
+     * delimiter has just been matched.
+     */
+    int next(int state, byte value) {
+        if (state == delimiter.length) {
+            state = state > 0 ? fallback[state - 1] : 0;
+        }
+        while (state > 0 && delimiter[state] != value) {
+            state = fallback[state - 1];
+        }
+        return delimiter.length > 0 && delimiter[state] == value ? state + 1 : state;
+    }
+
+    /**
+     * Feeds {@code buffer[from, to)} to the automaton, starting in the given state, and stops right after the first
+     * full match.
+     * @return the position right after the first full match, or {@code -(state + 1)} with the state reached at
+     * {@code to} if there was no full match.
+     */
+    int scan(byte[] buffer, int from, int to, int state) {
+        if (delimiter.length == 0) {
+            return from;
+        }
+        byte first = delimiter[0];
+        int x = from;
+        while (x < to) {
+            if (state == 0) {
+                // fast path: nothing matched yet, look for the first byte of the delimiter
+                while (x < to && buffer[x] != first) {
+                    x++;
+                }
+                if (x == to) {
+                    break;
+                }
+            }
+            state = next(state, buffer[x++]);
+            if (state == delimiter.length) {
+                return x;
+            }
+        }
+        return -(state + 1);
+    }
+
+    /**
+     * Finds the first occurrence of the delimiter fully contained in {@code buffer[from, to)}.
+     * @return the position of the delimiter, or -1 if not found.
+     */
+    int indexOf(byte[] buffer, int from, int to) {
+        int end = scan(buffer, from, to, 0);
+        return end >= 0 ? end - delimiter.length : -1;
+    }
+
+    /**
+     * Finds the positions of all the occurrences of the delimiter fully contained in {@code buffer[from, to)},
+     * including overlapping ones.
+     */
+    int[] indexesOf(byte[] buffer, int from, int to) {
+        int[] found = new int[4];
+        int count = 0;
+        int state = 0;
+        int position = from;
+        while (position < to) {
+            int end = scan(buffer, position, to, state);
+            if (end < 0) {
+                break;
+            }
+            if (count == found.length) {
+                found = Arrays.copyOf(found, count * 2);
+            }
+            found[count++] = end - delimiter.length;
+            state = delimiter.length;
+            position = end;
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private static byte[] toBytes(int[] delimiter) {
+        byte[] bytes = new byte[delimiter.length];
+        for (int x = 0; x < delimiter.length; x++) {
+            bytes[x] = (byte)delimiter[x];
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only, multi-valued map of the form fields (parts without filename) found in a multipart request body, as
+ * returned by {@link MultipartProcessor#collectFields(String, InputStream, long, MultipartProcessorListener)}.
+ * <p>
+ * All values are kept in a single byte arena with a table of offsets, and they are only decoded into
+ * {@link java.lang.String}s when requested. Values without an explicit charset in their Content-Type are decoded with
+ * the charset given by the "_charset_" field of the form, if any, or UTF-8 otherwise.
+ * <p>
+ * If collected with a {@link MemoryBudget}, the arena stays reserved from it until this object is closed, so the
+ * budget keeps bounding the memory of the fields while they are in use. Values can still be read after closing.
+ */
+public final class FormFields implements Closeable {
+
+    private static final int MAX_ARENA_SIZE = Integer.MAX_VALUE - 8;
+
+    private final long maxBytes;
+    private final MemoryBudget budget;
+    private long reserved;
+
+    private byte[] arena;
+    private int used;
+
+    private String[] names;
+    private int[] offsets;
+    private int[] lengths;
+    private Charset[] charsets;
+    private int size;
+
+    private Charset formCharset;
+    private Map<String, Object> index;
+
+    /**
+     * Creates an empty collection. If a budget is given, the arena is reserved from it as it grows, until
+     * {@link #close()} is called.
+     */
+    FormFields(long maxBytes, MemoryBudget budget) {
+        // the arena is a single array, so it can't hold more than this whatever the configured maximum
+        this.maxBytes = Math.min(maxBytes, MAX_ARENA_SIZE);
+        this.budget = budget;
+        this.arena = new byte[0];
+        this.names = new String[8];
+        this.offsets = new int[8];
+        this.lengths = new int[8];
+        this.charsets = new Charset[8];
+    }
+
+    /**
+     * Returns the number of values in this form, counting all values of multi-valued fields.
+     * @return the number of values.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the name of the value at the given position, in the order they were found in the body.
+     * @param position position of the value, from 0 to {@link FormFields#size()} - 1.
+     * @return the name of the field.
+     */
+    public String getName(int position) {
+        checkPosition(position);
+        return names[position];
+    }
+
+    /**
+     * Decodes the value at the given position, in the order they were found in the body.
+     * @param position position of the value, from 0 to {@link FormFields#size()} - 1.
+     * @return the value of the field.
+     */
+    public String getValue(int position) {
+        checkPosition(position);
+        Charset charset = charsets[position] != null ? charsets[position] : formCharset;
+        return new String(arena, offsets[position], lengths[position], charset);
+    }
+
+    /**
+     * Returns a read-only view of the raw bytes of the value at the given position, without copying them.
+     * @param position position of the value, from 0 to {@link FormFields#size()} - 1.
+     * @return a read-only {@link java.nio.ByteBuffer} with the bytes of the value.
+     */
+    public ByteBuffer getRawValue(int position) {
+        checkPosition(position);
+        return ByteBuffer.wrap(arena, offsets[position], lengths[position]).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the names of all the fields.
+     * @return A {@link java.util.Set} with the names of all the fields.
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * Decodes the first value found for a field.
+     * @param name the name of the field.
+     * @return the first value of the field, or {@code null} if there is no field with that name.
+     */
+    public String getValue(String name) {
+        Object positions = index.get(name);
+        if (positions == null) {
+            return null;
+        }
+        return getValue(positions instanceof Integer ? (Integer)positions : ((int[])positions)[0]);
+    }
+
+    /**
+     * Decodes all values found for a field.
+     * @param name the name of the field.
+     * @return A list containing all values of the field, or {@code null} if there is no field with that name.
+     */
+    public List<String> getValues(String name) {
+        Object positions = index.get(name);
+        if (positions == null) {
+            return null;
+        }
+        if (positions instanceof Integer) {
+            return List.of(getValue((Integer)positions));
+        }
+        int[] array = (int[])positions;
+        List<String> values = new ArrayList<>(array.length);
+        for (int position : array) {
+            values.add(getValue(position));
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    /**
+     * Returns the number of bytes used by all the values.
+     * @return the number of bytes in the arena.
+     */
+    public int getTotalBytes() {
+        return used;
+    }
+
+    /**
+     * Copies the rest of the given part's body into the arena.
+     * @throws IOException if the total size of the fields would exceed the maximum, or if the part's stream throws it.
+     */
+    void add(Part part) throws IOException {
+        if (size == names.length) {
+            int capacity = size * 2;
+            names = Arrays.copyOf(names, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            charsets = Arrays.copyOf(charsets, capacity);
+        }
+        InputStream body = part.getBodyStream();
+        int start = used;
+        int read;
+        while (true) {
+            if (used == arena.length && !grow()) {
+                if (body.read() != -1) {
+                    throw new IOException("Form fields exceed the maximum of " + maxBytes + " bytes");
+                }
+                break;
+            }
+            read = body.read(arena, used, arena.length - used);
+            if (read == -1) {
+                break;
+            }
+            used += read;
+        }
+        names[size] = part.getName() != null ? part.getName() : "";
+        offsets[size] = start;
+        lengths[size] = used - start;
+        charsets[size] = part.getDeclaredCharset();
+        size++;
+    }
+
+    /**
+     * Builds the index by name and resolves the form charset, once all fields have been added.
+     */
+    void complete() {
+        formCharset = StandardCharsets.UTF_8;
+        index = new HashMap<>();
+        for (int x = 0; x < size; x++) {
+            Object positions = index.get(names[x]);
+            if (positions == null) {
+                index.put(names[x], x);
+            } else if (positions instanceof Integer) {
+                index.put(names[x], new int[] {(Integer)positions, x});
+            } else {
+                int[] array = (int[])positions;
+                int[] newArray = Arrays.copyOf(array, array.length + 1);
+                newArray[array.length] = x;
+                index.put(names[x], newArray);
+            }
+            if (Part.CHARSET_FIELD.equals(names[x]) && formCharset == StandardCharsets.UTF_8) {
+                Charset charset = Part.toCharset(new String(arena, offsets[x], lengths[x], StandardCharsets.US_ASCII)
+                        .trim());
+                formCharset = charset != null ? charset : formCharset;
+            }
+        }
+    }
+
+    /**
+     * Gives back to the memory budget, if any, the memory reserved for the arena. Meant to be called once done with
+     * the values, although they can still be read afterwards.
+     */
+    @Override
+    public void close() {
+        if (budget != null) {
+            budget.release(reserved);
+            reserved = 0;
+        }
+    }
+
+    private boolean grow() throws IOException {
+        if (arena.length >= maxBytes) {
+            return false;
+        }
+        int capacity = (int)Math.min(maxBytes, Math.max(1024, arena.length * 2L));
+        if (budget != null) {
+            budget.reserve(capacity - arena.length);
+            reserved += capacity - arena.length;
+        }
+        arena = Arrays.copyOf(arena, capacity);
+        return true;
+    }
+
+    private void checkPosition(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("No value at position " + position);
+        }
+    }
+
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parameters of a header value like {@code form-data; name="field"; filename*=UTF-8''%E2%82%AC.txt}, as defined by
+ * RFC-7578 and RFC-5987. The header value is scanned once into a table of offsets of each key and value; values are
+ * only decoded (unquoted, unescaped and percent-decoded) when asked for, and then kept.
+ */
+final class HeaderParameters {
+
+    private static final int KEY_START = 0;
+    private static final int KEY_END = 1;
+    private static final int VALUE_START = 2;
+    private static final int VALUE_END = 3;
+    private static final int FIELDS = 4;
+
+    private final String header;
+    private final int valueEnd;
+    private int[] spans = new int[FIELDS * 4];
+    private int count;
+    private String[] decoded;
+
+    private HeaderParameters(String header, int valueEnd) {
+        this.header = header;
+        this.valueEnd = valueEnd;
+    }
+
+    static HeaderParameters parse(String header) {
+        int length = header.length();
+        int x = 0;
+        while (x < length && !isSeparator(header.charAt(x))) {
+            x++;
+        }
+        HeaderParameters parameters = new HeaderParameters(header, x);
+        while (true) {
+            while (x < length && isSeparator(header.charAt(x))) {
+                x++;
+            }
+            if (x == length) {
+                break;
+            }
+            int keyStart = x;
+            while (x < length && header.charAt(x) != '=' && !isSeparator(header.charAt(x))) {
+                x++;
+            }
+            int keyEnd = x;
+            x = skipWhitespace(header, x);
+            if (x == length || header.charAt(x) != '=') {
+                // parameter without value, ignored
+                continue;
+            }
+            x = skipWhitespace(header, x + 1);
+            int valueStart = x;
+            if (x < length && header.charAt(x) == '"') {
+                x++;
+                while (x < length && header.charAt(x) != '"') {
+                    x += header.charAt(x) == '\\' ? 2 : 1;
+                }
+                x = Math.min(x + 1, length);
+            } else {
+                while (x < length && !isSeparator(header.charAt(x))) {
+                    x++;
+                }
+            }
+            parameters.add(keyStart, keyEnd, valueStart, x);
+        }
+        parameters.decoded = new String[parameters.count];
+        return parameters;
+    }
+
+    /**
+     * Returns the value before the parameters, e.g. "form-data" or "multipart/form-data".
+     */
+    String getValue() {
+        return header.substring(0, valueEnd);
+    }
+
+    int size() {
+        return count;
+    }
+
+    String getKey(int index) {
+        return header.substring(spans[index * FIELDS + KEY_START], spans[index * FIELDS + KEY_END]);
+    }
+
+    /**
+     * Returns the value of the given parameter, with case-insensitive matching of the key. If there is also an
+     * extended parameter ({@code key*}) with a supported charset, its value is returned instead, as RFC-6266 asks.
+     * @return the decoded value, or {@code null} if the parameter is not present.
+     */
+    String get(String key) {
+        int extended = indexOf(key, true);
+        if (extended != -1) {
+            String value = decoded(extended);
+            if (value != null) {
+                return value;
+            }
+        }
+        int index = indexOf(key, false);
+        return index != -1 ? decoded(index) : null;
+    }
+
+    private void add(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+        if ((count + 1) * FIELDS > spans.length) {
+            int[] grown = new int[spans.length * 2];
+            System.arraycopy(spans, 0, grown, 0, spans.length);
+            spans = grown;
+        }
+        int base = count++ * FIELDS;
+        spans[base + KEY_START] = keyStart;
+        spans[base + KEY_END] = keyEnd;
+        spans[base + VALUE_START] = valueStart;
+        spans[base + VALUE_END] = valueEnd;
+    }
+
+    private int indexOf(String key, boolean extended) {
+        int keyLength = key.length() + (extended ? 1 : 0);
+        for (int x = 0; x < count; x++) {
+            int start = spans[x * FIELDS + KEY_START];
+            if (spans[x * FIELDS + KEY_END] - start == keyLength
+                    && header.regionMatches(true, start, key, 0, key.length())
+                    && (!extended || header.charAt(start + key.length()) == '*')) {
+                return x;
+            }
+        }
+        return -1;
+    }
+
+    private String decoded(int index) {
+        String value = decoded[index];
+        if (value == null) {
+            int start = spans[index * FIELDS + VALUE_START];
+            int end = spans[index * FIELDS + VALUE_END];
+            boolean extended = header.charAt(spans[index * FIELDS + KEY_END] - 1) == '*';
+            value = extended ? decodeExtended(start, end) : decodePlain(start, end);
+            decoded[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Decodes a value of the form {@code charset'language'percent-encoded-bytes}.
+     */
+    private String decodeExtended(int start, int end) {
+        int charsetEnd = header.indexOf('\'', start);
+        int languageEnd = charsetEnd != -1 && charsetEnd < end ? header.indexOf('\'', charsetEnd + 1) : -1;
+        if (languageEnd == -1 || languageEnd >= end) {
+            return null;
+        }
+        Charset charset = Part.toCharset(header.substring(start, charsetEnd));
+        if (charset == null) {
+            return null;
+        }
+        byte[] bytes = percentDecode(header.substring(languageEnd + 1, end), false);
+        return bytes != null ? decode(bytes, charset) : null;
+    }
+
+    /**
+     * Decodes a plain value: quotes are removed along with the backslashes escaping quotes or backslashes inside them
+     * (other backslashes are kept, as some browsers send full Windows paths unescaped), and percent-encoded UTF-8
+     * sequences are decoded. If percent-decoding doesn't produce valid UTF-8, it is not applied.
+     */
+    private String decodePlain(int start, int end) {
+        String value;
+        if (end > start && header.charAt(start) == '"') {
+            int closingQuote = end - start > 1 && header.charAt(end - 1) == '"' ? end - 1 : end;
+            value = unquote(start + 1, closingQuote);
+        } else {
+            value = header.substring(start, end);
+        }
+        if (value.indexOf('%') == -1) {
+            return value;
+        }
+        byte[] bytes = percentDecode(value, true);
+        String unescaped = bytes != null ? decode(bytes, StandardCharsets.UTF_8) : null;
+        return unescaped != null ? unescaped : value;
+    }
+
+    private String unquote(int start, int end) {
+        int backslash = header.indexOf('\\', start);
+        if (backslash == -1 || backslash >= end) {
+            return header.substring(start, end);
+        }
+        StringBuilder builder = new StringBuilder(end - start);
+        for (int x = start; x < end; x++) {
+            char ch = header.charAt(x);
+            if (ch == '\\' && x + 1 < end && (header.charAt(x + 1) == '"' || header.charAt(x + 1) == '\\')) {
+                ch = header.charAt(++x);
+            }
+            builder.append(ch);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Turns the given string into bytes, replacing each %XX by the byte it represents. Other chars are encoded in
+     * UTF-8 if {@code lenient}, otherwise they must be ASCII and a '%' must be followed by two hex digits.
+     * @return the bytes, or {@code null} if not lenient and the string is not valid.
+     */
+    private static byte[] percentDecode(String value, boolean lenient) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length());
+        for (int x = 0; x < value.length(); x++) {
+            char ch = value.charAt(x);
+            int high = ch == '%' && x + 2 < value.length() ? hexToDecimal(value.charAt(x + 1)) : -1;
+            int low = high != -1 ? hexToDecimal(value.charAt(x + 2)) : -1;
+            if (low != -1) {
+                bytes.write(high * 0x10 + low);
+                x += 2;
+            } else if (ch < 0x80 && (lenient || ch != '%')) {
+                bytes.write(ch);
+            } else if (lenient) {
+                byte[] encoded = String.valueOf(ch).getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded, 0, encoded.length);
+            } else {
+                return null;
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String decode(byte[] bytes, Charset charset) {
+        try {
+            return charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes)).toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    private static int hexToDecimal(char ch) {
+        if (ch >= '0' && ch <= '9') {
+            return ch & 0xF;
+        }
+        ch |= 0x20;
+        if (ch >= 'a' && ch <= 'f') {
+            return ch - 87;
+        }
+        return -1;
+    }
+
+    private static boolean isSeparator(char ch) {
+        return ch == ';' || ch == ' ' || ch == '\t';
+    }
+
+    private static int skipWhitespace(String string, int x) {
+        while (x < string.length() && (string.charAt(x) == ' ' || string.charAt(x) == '\t')) {
+            x++;
+        }
+        return x;
+    }
+
+}
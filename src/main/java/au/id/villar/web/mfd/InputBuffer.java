@@ -0,0 +1,352 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * InputStream which wraps the body of a multipart request and keeps its own buffer. The parser scans and copies
+ * straight from the internal array ({@link #buffer}, from {@link #position} to {@link #limit}), so body bytes don't
+ * need to go through intermediate arrays or per-byte calls.
+ * <p>
+ * If the body uses chunked transfer coding, the framing can be removed in the same buffer: raw bytes are read right
+ * after {@link #limit} and the payload of each chunk is left where it is, or moved down over the framing that preceded
+ * it, so only the bytes read after a chunk boundary in the same read are ever moved. The end of the body is the last
+ * (empty) chunk and its trailer; anything read beyond it is kept apart (see {@link #bytesAfterBody()}), as it belongs
+ * to whatever follows the body on the same connection.
+ */
+final class InputBuffer extends InputStream {
+
+    static final int DEFAULT_SIZE = 8192;
+
+    final byte[] buffer;
+    int position;
+    int limit;
+    final ProgressTracker progress;
+
+    private final InputStream upstream;
+    private final int maxFill;
+    private final ThroughputGuard guard;
+    private final boolean chunked;
+    private boolean eof;
+    private long maxBytes = Long.MAX_VALUE;
+    private long totalRead;
+
+    // chunked transfer coding: raw bytes not decoded yet are in [rawPosition, rawLimit), always at or after limit
+    private int rawPosition;
+    private int rawLimit;
+    private int chunkState = CHUNK_SIZE;
+    private long chunkSize;
+    private long chunkRemaining;
+    private int lineLength;
+    private byte[] afterBody = new byte[0];
+
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_EXTENSION = 1;
+    private static final int CHUNK_SIZE_LF = 2;
+    private static final int CHUNK_DATA = 3;
+    private static final int CHUNK_DATA_CR = 4;
+    private static final int CHUNK_DATA_LF = 5;
+    private static final int CHUNK_TRAILER = 6;
+    private static final int CHUNK_TRAILER_LF = 7;
+    private static final int CHUNK_END = 8;
+    private static final int MAX_FRAMING_LINE = 4096;
+
+    /**
+     * Creates a buffer that reads as many bytes from upstream as it can fit each time it needs more data.
+     */
+    InputBuffer(InputStream upstream, int size) {
+        this(upstream, size, size, null, null, false);
+    }
+
+    /**
+     * Same as {@link #InputBuffer(InputStream, int)}, but informing the given guard and progress tracker (either can be
+     * {@code null}) after every read from upstream, and removing the chunked transfer coding from upstream if
+     * {@code chunked}.
+     */
+    InputBuffer(InputStream upstream, int size, ThroughputGuard guard, ProgressTracker progress, boolean chunked) {
+        this(upstream, size, size, guard, progress, chunked);
+    }
+
+    private InputBuffer(InputStream upstream, int size, int maxFill, ThroughputGuard guard,
+            ProgressTracker progress, boolean chunked) {
+        this.upstream = upstream;
+        this.buffer = new byte[size];
+        this.maxFill = maxFill;
+        this.guard = guard;
+        this.progress = progress;
+        this.chunked = chunked;
+    }
+
+    /**
+     * Returns the given stream if it is already an {@link InputBuffer}, otherwise wraps it in one which reads from
+     * upstream one byte at a time, so no byte beyond the ones actually requested by the parser is consumed from it.
+     */
+    static InputBuffer of(InputStream inputStream, int minSize) {
+        if (inputStream instanceof InputBuffer) {
+            return (InputBuffer)inputStream;
+        }
+        return new InputBuffer(inputStream, Math.max(16, minSize), 1, null, null, false);
+    }
+
+    /**
+     * Makes sure there are at least {@code needed} bytes buffered, unless the end of the stream is reached first.
+     * @return the number of bytes buffered, which is less than {@code needed} only on EOF.
+     */
+    int require(int needed) throws IOException {
+        if (buffer.length - position < needed) {
+            compact();
+        }
+        while (limit - position < needed && fill()) {
+            // keep filling
+        }
+        return limit - position;
+    }
+
+    /**
+     * Reads more bytes from upstream into the buffer, compacting it first if there is no room left.
+     * @return {@code false} if upstream reached EOF.
+     */
+    boolean fill() throws IOException {
+        if (chunked) {
+            return fillChunked();
+        }
+        if (limit == buffer.length) {
+            compact();
+        }
+        int read = readUpstream(buffer, limit, Math.min(maxFill, buffer.length - limit));
+        if (read == -1) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    /**
+     * Sets the maximum number of bytes that can be read from upstream, checked after every read.
+     */
+    void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns whether {@link #readUpstream(byte[], int, int)} can be used to read the body bypassing the buffer, which
+     * is not the case if the body has to be decoded.
+     */
+    boolean canReadUpstream() {
+        return !chunked;
+    }
+
+    /**
+     * Reads from upstream straight into the given array, bypassing the buffer. Only meant to be used when the buffer is
+     * empty and {@link #canReadUpstream()}.
+     * @return the number of bytes read, or -1 on EOF.
+     */
+    int readUpstream(byte[] bytes, int offset, int length) throws IOException {
+        if (eof) {
+            return -1;
+        }
+        int read = upstream.read(bytes, offset, length);
+        if (guard != null) {
+            guard.onRead(read);
+        }
+        if (progress != null) {
+            progress.onRead(read);
+        }
+        if (read == -1) {
+            eof = true;
+            return read;
+        }
+        totalRead += read;
+        if (totalRead > maxBytes) {
+            throw new MultipartLimitException(MultipartLimitException.Limit.TOTAL_BYTES, maxBytes,
+                    "Multipart body too big");
+        }
+        return read;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        int count = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && (position < limit || fill())) {
+            int count = (int)Math.min(n - skipped, limit - position);
+            position += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    private void compact() {
+        if (position == 0) {
+            return;
+        }
+        if (chunked) {
+            System.arraycopy(buffer, position, buffer, 0, rawLimit - position);
+            rawPosition -= position;
+            rawLimit -= position;
+        } else {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+        }
+        limit -= position;
+        position = 0;
+    }
+
+    private boolean fillChunked() throws IOException {
+        while (!decodeChunks()) {
+            if (chunkState == CHUNK_END) {
+                return false;
+            }
+            if (rawLimit == buffer.length) {
+                compact();
+            }
+            int read = readUpstream(buffer, rawLimit, Math.min(maxFill, buffer.length - rawLimit));
+            if (read == -1) {
+                throw new IOException("Unexpected end of chunked body");
+            }
+            rawLimit += read;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the bytes read from upstream beyond the end of a chunked body, empty unless the end has been reached.
+     */
+    byte[] bytesAfterBody() {
+        return afterBody;
+    }
+
+    /**
+     * Decodes the raw bytes available, appending the payload to the buffered bytes.
+     * @return {@code true} if any payload byte was appended.
+     */
+    private boolean decodeChunks() throws IOException {
+        int start = limit;
+        while (rawPosition < rawLimit && chunkState != CHUNK_END) {
+            if (chunkState == CHUNK_DATA) {
+                int count = (int)Math.min(chunkRemaining, rawLimit - rawPosition);
+                if (rawPosition != limit) {
+                    System.arraycopy(buffer, rawPosition, buffer, limit, count);
+                }
+                limit += count;
+                rawPosition += count;
+                chunkRemaining -= count;
+                if (chunkRemaining == 0) {
+                    chunkState = CHUNK_DATA_CR;
+                }
+            } else {
+                decodeFraming(buffer[rawPosition++]);
+            }
+        }
+        if (chunkState == CHUNK_END && rawPosition < rawLimit) {
+            afterBody = Arrays.copyOfRange(buffer, rawPosition, rawLimit);
+        }
+        if (rawPosition == rawLimit || chunkState == CHUNK_END) {
+            // next raw bytes go right after the payload, so they don't need to be moved
+            rawPosition = limit;
+            rawLimit = limit;
+        }
+        return limit > start;
+    }
+
+    private void decodeFraming(byte value) throws IOException {
+        if (++lineLength > MAX_FRAMING_LINE) {
+            throw new IOException("Chunk framing line too long");
+        }
+        switch (chunkState) {
+            case CHUNK_SIZE -> {
+                int digit = Character.digit(value, 16);
+                if (digit != -1 && chunkSize <= Long.MAX_VALUE >> 4) {
+                    chunkSize = chunkSize * 16 + digit;
+                } else if (lineLength > 1 && (value == ';' || value == ' ' || value == '\t')) {
+                    chunkState = CHUNK_EXTENSION;
+                } else if (lineLength > 1 && value == '\r') {
+                    chunkState = CHUNK_SIZE_LF;
+                } else {
+                    throw new IOException("Invalid chunk size");
+                }
+            }
+            case CHUNK_EXTENSION -> {
+                if (value == '\r') {
+                    chunkState = CHUNK_SIZE_LF;
+                }
+            }
+            case CHUNK_SIZE_LF -> {
+                expect(value, '\n');
+                chunkState = chunkSize == 0 ? CHUNK_TRAILER : CHUNK_DATA;
+                chunkRemaining = chunkSize;
+                chunkSize = 0;
+                lineLength = 0;
+            }
+            case CHUNK_DATA_CR -> {
+                expect(value, '\r');
+                chunkState = CHUNK_DATA_LF;
+            }
+            case CHUNK_DATA_LF -> {
+                expect(value, '\n');
+                chunkState = CHUNK_SIZE;
+                lineLength = 0;
+            }
+            case CHUNK_TRAILER -> {
+                if (value == '\r') {
+                    chunkState = CHUNK_TRAILER_LF;
+                }
+            }
+            default -> {
+                // CHUNK_TRAILER_LF
+                expect(value, '\n');
+                chunkState = lineLength == 2 ? CHUNK_END : CHUNK_TRAILER;
+                lineLength = 0;
+            }
+        }
+    }
+
+    private static void expect(byte value, char expected) throws IOException {
+        if (value != expected) {
+            throw new IOException("Invalid chunk framing");
+        }
+    }
+
+}
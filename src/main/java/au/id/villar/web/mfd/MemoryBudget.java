@@ -0,0 +1,169 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upper bound for the memory used for buffering by all the parses sharing this object, e.g. every request handled by
+ * a server. The parser reserves its read buffer from it, {@link MultipartProcessor#collectFields(String,
+ * java.io.InputStream, long, MultipartProcessorListener, MultipartOptions)} its arena, and the built-in sinks given one
+ * their buffers; all of them give the memory back once done with it: the parser when it finishes, and the
+ * {@link FormFields} and the sinks when they are closed.
+ * <p>
+ * Reservations are made with a compare-and-set on a single counter, so they don't lock. Only when the budget is
+ * exhausted, a reservation waits for other ones to be released, up to the maximum wait given when creating the budget.
+ * The sinks don't wait if they can do with less memory: {@link AsyncFileSink} writes to disk with fewer buffers,
+ * {@link ParallelGzipOutputStream} with fewer blocks in flight, and the asynchronous sinks of a {@link PartTee} apply
+ * their lag policy as if their queues were full.
+ * <p>
+ * Example, sharing the same budget among all requests:
+ * <pre>{@code
+ * MemoryBudget budget = new MemoryBudget(64 * 1024 * 1024, Duration.ofSeconds(2));
+ * ...
+ * MultipartProcessor.process(boundary, input, listener, new MultipartOptions().setMemoryBudget(budget));
+ * }</pre>
+ */
+public final class MemoryBudget {
+
+    private final long maxBytes;
+    private final long maxWaitNanos;
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Object releases = new Object();
+
+    /**
+     * Creates a budget whose reservations fail right away when it is exhausted.
+     * @param maxBytes maximum number of bytes reserved at any time.
+     */
+    public MemoryBudget(long maxBytes) {
+        this(maxBytes, Duration.ZERO);
+    }
+
+    /**
+     * Creates a budget whose reservations wait up to the given time for memory to be released when it is exhausted.
+     * @param maxBytes maximum number of bytes reserved at any time.
+     * @param maxWait maximum time to wait for a reservation.
+     */
+    public MemoryBudget(long maxBytes, Duration maxWait) {
+        if (maxBytes <= 0 || maxWait.isNegative()) {
+            throw new IllegalArgumentException("Budget must be positive and maximum wait not negative");
+        }
+        this.maxBytes = maxBytes;
+        this.maxWaitNanos = maxWait.toNanos();
+    }
+
+    /**
+     * Reserves the given number of bytes if available, without waiting.
+     * @param bytes number of bytes to reserve.
+     * @return {@code true} if reserved, {@code false} if there is not enough memory left in the budget.
+     */
+    public boolean tryReserve(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Negative reservation: " + bytes);
+        }
+        long current;
+        do {
+            current = reserved.get();
+            if (current + bytes > maxBytes) {
+                return false;
+            }
+        } while (!reserved.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    /**
+     * Reserves the given number of bytes, waiting up to the budget's maximum wait for them to be available.
+     * @param bytes number of bytes to reserve.
+     * @throws MemoryBudgetExceededException if the bytes couldn't be reserved within the maximum wait, or if they
+     * exceed the whole budget.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     */
+    public void reserve(long bytes) throws MemoryBudgetExceededException, InterruptedIOException {
+        if (tryReserve(bytes)) {
+            return;
+        }
+        if (bytes > maxBytes || maxWaitNanos == 0) {
+            throw exceeded(bytes);
+        }
+        long deadline = System.nanoTime() + maxWaitNanos;
+        waiting.incrementAndGet();
+        try {
+            synchronized (releases) {
+                while (!tryReserve(bytes)) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw exceeded(bytes);
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(releases, remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for memory");
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Gives back bytes previously reserved.
+     * @param bytes number of bytes to release.
+     */
+    public void release(long bytes) {
+        reserved.addAndGet(-bytes);
+        if (waiting.get() > 0) {
+            synchronized (releases) {
+                releases.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently reserved, to be exposed as a gauge.
+     * @return the number of bytes reserved.
+     */
+    public long getReserved() {
+        return reserved.get();
+    }
+
+    /**
+     * Returns the number of bytes that can still be reserved.
+     * @return the number of bytes available.
+     */
+    public long getAvailable() {
+        return Math.max(0, maxBytes - reserved.get());
+    }
+
+    /**
+     * Returns the maximum number of bytes reserved at any time.
+     * @return the size of the budget.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private MemoryBudgetExceededException exceeded(long bytes) {
+        return new MemoryBudgetExceededException(bytes, "Can't reserve " + bytes + " bytes from a memory budget of "
+                + maxBytes + " bytes, " + reserved.get() + " already reserved");
+    }
+
+}
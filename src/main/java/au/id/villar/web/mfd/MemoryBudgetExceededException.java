@@ -0,0 +1,44 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.IOException;
+
+/**
+ * Thrown when some memory needed for buffering can't be reserved from a {@link MemoryBudget}, neither immediately nor
+ * within the budget's maximum wait.
+ */
+public class MemoryBudgetExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long requestedBytes;
+
+    MemoryBudgetExceededException(long requestedBytes, String message) {
+        super(message);
+        this.requestedBytes = requestedBytes;
+    }
+
+    /**
+     * Returns the number of bytes that couldn't be reserved.
+     * @return the number of bytes requested.
+     */
+    public long getRequestedBytes() {
+        return requestedBytes;
+    }
+
+}
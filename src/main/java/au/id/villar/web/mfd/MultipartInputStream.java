@@ -18,62 +18,358 @@ package au.id.villar.web.mfd;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PushbackInputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * InputStream which wraps another one and reads up to the given delimiter. Once the delimiter has been reached, this
  * InputStream returns EOF (-1) when further reads are attempted.
+ * <p>
+ * Body bytes are delivered in spans copied straight from the internal array of an {@link InputBuffer}, so bulk reads,
+ * {@link #transferTo(OutputStream)} and {@link #read(ByteBuffer)} (heap or direct) cost a single copy.
+ * <p>
+ * The delimiter is looked for with a {@link DelimiterMatcher}, whose state is kept between buffer fills, so the time
+ * spent scanning is linear in the size of the body whatever its content.
+ * <p>
+ * If the length of the body is known in advance (see {@link #setKnownLength(long)}), that many bytes are delivered
+ * without scanning them for the delimiter, which is then expected right after them. If it isn't there, the rest of the
+ * body is scanned as usual.
  */
-class MultipartInputStream extends InputStream {
+class MultipartInputStream extends InputStream implements ReadableByteChannel {
 
-    private final PushbackInputStream wrappedInputStream;
-    private final int[] delimiter;
+    private static final int MAX_DECLARED_LENGTH_ESTIMATE = 64 * 1024;
 
-    private int posSuspectedBoundary;
-    private int posReturnFakePositive;
+    private final InputBuffer source;
+    private final byte[] delimiter;
+    private final DelimiterMatcher matcher;
+    private final ProgressTracker progress;
+
+    private int spanRemaining;
+    private int matched;
+    private long knownRemaining = -1;
+    private long maxBytes = Long.MAX_VALUE;
+    private long bodyBytes;
+    private boolean delimiterReached;
+    private boolean closed;
+
+    private byte[] capture;
+    private int captured;
 
     MultipartInputStream(InputStream wrappedInputStream, int[] delimiter) {
-        this.wrappedInputStream = new PushbackInputStream(wrappedInputStream);
-        this.delimiter = delimiter;
+        this.source = InputBuffer.of(wrappedInputStream, delimiter.length * 2);
+        this.progress = source.progress;
+        this.delimiter = new byte[delimiter.length];
+        for (int x = 0; x < delimiter.length; x++) {
+            this.delimiter[x] = (byte)delimiter[x];
+        }
+        this.matcher = new DelimiterMatcher(this.delimiter);
     }
 
     @Override
     public int read() throws IOException {
-        int read = -1;
-        if (posReturnFakePositive > 0) {
-            read = delimiter[posReturnFakePositive++];
-            if (posReturnFakePositive == posSuspectedBoundary) {
-                posReturnFakePositive = 0;
-                posSuspectedBoundary = 0;
+        if (nextSpan() == -1) {
+            return -1;
+        }
+        int read = source.buffer[source.position] & 0xFF;
+        consume(1);
+        return read;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (knownRemaining > 0 && spanRemaining == 0 && source.position == source.limit
+                && length >= source.buffer.length && source.canReadUpstream()) {
+            // big read of a body with known length: straight from upstream into the caller's array
+            int read = source.readUpstream(bytes, offset, (int)Math.min(length, knownRemaining));
+            if (read == -1) {
+                throw new IOException("Unexpected end of stream reading multipart");
             }
+            knownRemaining -= read;
+            countBodyBytes(read);
+            delivered(bytes, offset, read);
             return read;
         }
-
-        while (posSuspectedBoundary < delimiter.length
-                && (read = wrappedInputStream.read()) != -1
-                && read == delimiter[posSuspectedBoundary]) {
-            posSuspectedBoundary++;
+        int span = nextSpan();
+        if (span == -1) {
+            return -1;
         }
+        int count = Math.min(span, length);
+        System.arraycopy(source.buffer, source.position, bytes, offset, count);
+        consume(count);
+        return count;
+    }
 
-        if (posSuspectedBoundary == delimiter.length) {
+    /**
+     * Reads a sequence of bytes from this part's body into the given buffer, which can be either a heap or a direct
+     * {@link ByteBuffer}. Bytes are copied straight from the parser's own buffer.
+     */
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (!destination.hasRemaining()) {
+            return 0;
+        }
+        int span = nextSpan();
+        if (span == -1) {
             return -1;
         }
+        int count = Math.min(span, destination.remaining());
+        destination.put(source.buffer, source.position, count);
+        consume(count);
+        return count;
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        long transferred = 0;
+        int span;
+        while ((span = nextSpan()) != -1) {
+            out.write(source.buffer, source.position, span);
+            consume(span);
+            transferred += span;
+        }
+        return transferred;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        int span;
+        while (skipped < n && (span = nextSpan()) != -1) {
+            int count = (int)Math.min(span, n - skipped);
+            consume(count);
+            skipped += count;
+        }
+        return skipped;
+    }
 
-        if (posSuspectedBoundary > 0) {
-            wrappedInputStream.unread(read);
-            read = delimiter[posReturnFakePositive++];
-            if (posReturnFakePositive == posSuspectedBoundary) {
-                posReturnFakePositive = 0;
-                posSuspectedBoundary = 0;
+    @Override
+    public int available() {
+        return delimiterReached ? 0 : spanRemaining;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Closes the channel view of this stream. The rest of the part's body is left in place, to be skipped by the
+     * processor once the listener returns.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Decodes the rest of the body straight from the parser's buffer into a single {@link String}, with no intermediate
+     * byte array. When the whole body is already buffered, the output is sized exactly.
+     * @param charset the charset to decode the body with. Malformed input is replaced, as {@link String} does.
+     * @param maxLength maximum number of chars allowed.
+     * @param expectedLength expected number of bytes of the body, or -1 if unknown.
+     * @throws IOException if the body has more than {@code maxLength} chars, or if the underlying stream throws it.
+     */
+    String readText(Charset charset, int maxLength, long expectedLength) throws IOException {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        int span = nextSpan();
+        if (span == -1) {
+            return "";
+        }
+        // the expected length comes from a header sent by the client: only trusted to size the output up to a point
+        long knownBytes = expectedLength != -1 ? Math.min(expectedLength, MAX_DECLARED_LENGTH_ESTIMATE) : -1;
+        if (spanRemainsToDelimiter()) {
+            knownBytes = span;
+        }
+        long estimate = knownBytes != -1 ? (long)Math.ceil(knownBytes * (double)decoder.maxCharsPerByte()) : 2L * span;
+        CharBuffer out = CharBuffer.allocate((int)Math.min(estimate, maxCapacity(maxLength)));
+        ByteBuffer carry = null;
+
+        while (span != -1) {
+            if (carry != null && carry.position() > 0) {
+                // a char split between spans: feed its bytes one by one until the decoder consumes them
+                carry.put(source.buffer[source.position]);
+                consume(1);
+                carry.flip();
+                out = decode(decoder, carry, out, false, maxLength);
+                carry.compact();
+            } else {
+                ByteBuffer in = ByteBuffer.wrap(source.buffer, source.position, span);
+                out = decode(decoder, in, out, false, maxLength);
+                if (in.hasRemaining()) {
+                    if (carry == null) {
+                        carry = ByteBuffer.allocate(16);
+                    }
+                    carry.put(in);
+                }
+                consume(span);
             }
-            return read;
+            span = nextSpan();
         }
 
-        if (read == -1) {
-            throw new IOException("Unexpected end of stream reading multipart");
+        if (carry != null) {
+            carry.flip();
+        }
+        out = decode(decoder, carry != null ? carry : ByteBuffer.allocate(0), out, true, maxLength);
+        while (decoder.flush(out).isOverflow()) {
+            out = grow(out, maxLength);
         }
+        return new String(out.array(), 0, out.position());
+    }
 
-        return read;
+    /**
+     * Sets the number of bytes the rest of the body is expected to have, so they are delivered without looking for the
+     * delimiter.
+     */
+    void setKnownLength(long knownLength) {
+        this.knownRemaining = knownLength;
+    }
+
+    /**
+     * Sets the maximum size of the body. It is checked every time more of the body is found, before delivering it.
+     */
+    void setMaxLength(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Records a copy of the first {@code maxBytes} bytes of the body, no matter who consumes them.
+     */
+    void captureBody(int maxBytes) {
+        capture = new byte[maxBytes];
+    }
+
+    String capturedText(Charset charset) {
+        return capture != null ? new String(capture, 0, captured, charset) : null;
+    }
+
+    void skipRemaining() throws IOException {
+        int span;
+        while ((span = nextSpan()) != -1) {
+            consume(span);
+        }
+    }
+
+    private CharBuffer decode(CharsetDecoder decoder, ByteBuffer in, CharBuffer out, boolean endOfInput,
+            int maxLength) throws IOException {
+        while (decoder.decode(in, out, endOfInput).isOverflow()) {
+            out = grow(out, maxLength);
+        }
+        if (out.position() > maxLength) {
+            throw new IOException("Part body exceeds the maximum text length of " + maxLength);
+        }
+        return out;
+    }
+
+    private CharBuffer grow(CharBuffer out, int maxLength) throws IOException {
+        if (out.capacity() > maxLength) {
+            throw new IOException("Part body exceeds the maximum text length of " + maxLength);
+        }
+        int capacity = (int)Math.min(Math.max(16, out.capacity() * 2L), maxCapacity(maxLength));
+        CharBuffer grown = CharBuffer.allocate(capacity);
+        out.flip();
+        grown.put(out);
+        return grown;
+    }
+
+    private static long maxCapacity(int maxLength) {
+        return Math.min(maxLength + 1L, Integer.MAX_VALUE - 8);
+    }
+
+    private boolean spanRemainsToDelimiter() {
+        return matched == delimiter.length;
+    }
+
+    private void countBodyBytes(int count) throws MultipartLimitException {
+        bodyBytes += count;
+        if (bodyBytes > maxBytes) {
+            throw new MultipartLimitException(MultipartLimitException.Limit.PART_BYTES, maxBytes,
+                    "Part body too big");
+        }
+    }
+
+    private void consume(int count) {
+        delivered(source.buffer, source.position, count);
+        source.position += count;
+        spanRemaining -= count;
+    }
+
+    private void delivered(byte[] bytes, int offset, int count) {
+        if (capture != null && captured < capture.length) {
+            int toCapture = Math.min(count, capture.length - captured);
+            System.arraycopy(bytes, offset, capture, captured, toCapture);
+            captured += toCapture;
+        }
+        if (progress != null) {
+            progress.addPartBytes(count);
+        }
+    }
+
+    /**
+     * Returns how many bytes, starting at the source's current position, are known to belong to the body; or -1 if the
+     * delimiter is right at the current position, in which case it is consumed.
+     * <p>
+     * The bytes right after the current span, up to {@link #matched}, have already been found to be the beginning of
+     * the delimiter, so scanning resumes after them with the same matcher state and no byte is ever looked at twice.
+     */
+    private int nextSpan() throws IOException {
+        if (spanRemaining > 0) {
+            return spanRemaining;
+        }
+        if (delimiterReached) {
+            return -1;
+        }
+        if (knownRemaining > 0) {
+            if (source.position == source.limit && !source.fill()) {
+                throw new IOException("Unexpected end of stream reading multipart");
+            }
+            spanRemaining = (int)Math.min(knownRemaining, source.limit - source.position);
+            knownRemaining -= spanRemaining;
+            countBodyBytes(spanRemaining);
+            return spanRemaining;
+        }
+        if (knownRemaining == 0) {
+            knownRemaining = -1;
+            if (source.require(delimiter.length) >= delimiter.length
+                    && matcher.indexOf(source.buffer, source.position, source.position + delimiter.length)
+                    == source.position) {
+                matched = delimiter.length;
+            }
+        }
+        while (matched < delimiter.length) {
+            if (source.position + matched == source.limit && source.require(matched + 1) <= matched) {
+                throw new IOException("Unexpected end of stream reading multipart");
+            }
+            int end = matcher.scan(source.buffer, source.position + matched, source.limit, matched);
+            if (end >= 0) {
+                matched = delimiter.length;
+                spanRemaining = end - delimiter.length - source.position;
+            } else {
+                matched = -end - 1;
+                spanRemaining = source.limit - source.position - matched;
+            }
+            if (spanRemaining > 0) {
+                countBodyBytes(spanRemaining);
+                return spanRemaining;
+            }
+        }
+        source.position += delimiter.length;
+        matched = 0;
+        delimiterReached = true;
+        return -1;
     }
 
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a multipart body exceeds one of the limits set in {@link MultipartLimits}. Parsing stops as soon as the
+ * limit is exceeded, so the rest of the body is left unread.
+ */
+public class MultipartLimitException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The limit that was exceeded.
+     */
+    public enum Limit {
+        /** A header line of a part is longer than allowed. */
+        HEADER_LINE_LENGTH,
+        /** A part has more headers than allowed. */
+        HEADERS_PER_PART,
+        /** The body has more parts than allowed. */
+        PARTS,
+        /** The body of a part is bigger than allowed. */
+        PART_BYTES,
+        /** The whole body is bigger than allowed. */
+        TOTAL_BYTES,
+        /** The preamble is longer than allowed. */
+        PREAMBLE_LENGTH,
+        /** The epilogue is longer than allowed. */
+        EPILOGUE_LENGTH
+    }
+
+    private final Limit limit;
+    private final long maxValue;
+
+    MultipartLimitException(Limit limit, long maxValue, String message) {
+        super(message + " (limit " + maxValue + ")");
+        this.limit = limit;
+        this.maxValue = maxValue;
+    }
+
+    /**
+     * Returns the limit that was exceeded.
+     * @return the limit.
+     */
+    public Limit getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns the configured maximum of the limit that was exceeded.
+     * @return the maximum value allowed.
+     */
+    public long getMaxValue() {
+        return maxValue;
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+/**
+ * Structural limits of a multipart body, set with {@link MultipartOptions#setLimits(MultipartLimits)}. They are checked
+ * as the body is read, so a malformed or hostile body is rejected with a {@link MultipartLimitException} after a
+ * bounded amount of work and memory, instead of once it has been read. Setters return this same object so calls can be
+ * chained. All limits are disabled by default.
+ */
+public final class MultipartLimits {
+
+    private int maxHeaderLineLength = Integer.MAX_VALUE;
+    private int maxHeadersPerPart = Integer.MAX_VALUE;
+    private int maxParts = Integer.MAX_VALUE;
+    private long maxPartBytes = Long.MAX_VALUE;
+    private long maxTotalBytes = Long.MAX_VALUE;
+    private long maxPreambleLength = Long.MAX_VALUE;
+    private long maxEpilogueLength = Long.MAX_VALUE;
+
+    /**
+     * Sets the maximum length of each header line of a part, name and value included, but not the line break.
+     * @param maxHeaderLineLength maximum number of bytes of a header line.
+     * @return this object.
+     */
+    public MultipartLimits setMaxHeaderLineLength(int maxHeaderLineLength) {
+        this.maxHeaderLineLength = positive(maxHeaderLineLength);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of headers of each part.
+     * @param maxHeadersPerPart maximum number of headers.
+     * @return this object.
+     */
+    public MultipartLimits setMaxHeadersPerPart(int maxHeadersPerPart) {
+        this.maxHeadersPerPart = (int)notNegative(maxHeadersPerPart);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of parts of the body.
+     * @param maxParts maximum number of parts.
+     * @return this object.
+     */
+    public MultipartLimits setMaxParts(int maxParts) {
+        this.maxParts = (int)notNegative(maxParts);
+        return this;
+    }
+
+    /**
+     * Sets the maximum size of the body of each part. It is checked as the body is found, one buffer at a time, so the
+     * listener may have read up to a buffer beyond the limit when the exception is thrown.
+     * @param maxPartBytes maximum number of bytes of the body of a part.
+     * @return this object.
+     */
+    public MultipartLimits setMaxPartBytes(long maxPartBytes) {
+        this.maxPartBytes = notNegative(maxPartBytes);
+        return this;
+    }
+
+    /**
+     * Sets the maximum size of the whole multipart body, as read from the provided {@link java.io.InputStream} (chunk
+     * framing included, if the input uses chunked transfer coding).
+     * @param maxTotalBytes maximum number of bytes of the body.
+     * @return this object.
+     */
+    public MultipartLimits setMaxTotalBytes(long maxTotalBytes) {
+        this.maxTotalBytes = positive(maxTotalBytes);
+        return this;
+    }
+
+    /**
+     * Sets the maximum length of the preamble, the bytes before the first delimiter.
+     * @param maxPreambleLength maximum number of bytes of the preamble.
+     * @return this object.
+     */
+    public MultipartLimits setMaxPreambleLength(long maxPreambleLength) {
+        this.maxPreambleLength = notNegative(maxPreambleLength);
+        return this;
+    }
+
+    /**
+     * Sets the maximum length of the epilogue, the bytes after the last delimiter.
+     * @param maxEpilogueLength maximum number of bytes of the epilogue.
+     * @return this object.
+     */
+    public MultipartLimits setMaxEpilogueLength(long maxEpilogueLength) {
+        this.maxEpilogueLength = notNegative(maxEpilogueLength);
+        return this;
+    }
+
+    /**
+     * Returns the maximum length of each header line of a part.
+     * @return the maximum length, or {@link Integer#MAX_VALUE} if not set.
+     */
+    public int getMaxHeaderLineLength() {
+        return maxHeaderLineLength;
+    }
+
+    /**
+     * Returns the maximum number of headers of each part.
+     * @return the maximum number of headers, or {@link Integer#MAX_VALUE} if not set.
+     */
+    public int getMaxHeadersPerPart() {
+        return maxHeadersPerPart;
+    }
+
+    /**
+     * Returns the maximum number of parts of the body.
+     * @return the maximum number of parts, or {@link Integer#MAX_VALUE} if not set.
+     */
+    public int getMaxParts() {
+        return maxParts;
+    }
+
+    /**
+     * Returns the maximum size of the body of each part.
+     * @return the maximum size, or {@link Long#MAX_VALUE} if not set.
+     */
+    public long getMaxPartBytes() {
+        return maxPartBytes;
+    }
+
+    /**
+     * Returns the maximum size of the whole multipart body.
+     * @return the maximum size, or {@link Long#MAX_VALUE} if not set.
+     */
+    public long getMaxTotalBytes() {
+        return maxTotalBytes;
+    }
+
+    /**
+     * Returns the maximum length of the preamble.
+     * @return the maximum length, or {@link Long#MAX_VALUE} if not set.
+     */
+    public long getMaxPreambleLength() {
+        return maxPreambleLength;
+    }
+
+    /**
+     * Returns the maximum length of the epilogue.
+     * @return the maximum length, or {@link Long#MAX_VALUE} if not set.
+     */
+    public long getMaxEpilogueLength() {
+        return maxEpilogueLength;
+    }
+
+    private static int positive(int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        return value;
+    }
+
+    private static long positive(long value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        return value;
+    }
+
+    private static long notNegative(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Limit can't be negative");
+        }
+        return value;
+    }
+
+}
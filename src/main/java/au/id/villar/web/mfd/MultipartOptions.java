@@ -0,0 +1,271 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+
+/**
+ * Optional settings for {@link MultipartProcessor#process(String, java.io.InputStream, MultipartProcessorListener,
+ * MultipartOptions)}. Setters return this same object so calls can be chained. All settings are disabled by default.
+ */
+public final class MultipartOptions {
+
+    private long minBytesPerSecond;
+    private Duration throughputWindow;
+    private Duration headerTimeout;
+    private Duration deadline;
+    private ProgressListener progressListener;
+    private long progressBytes;
+    private Duration progressInterval;
+    private boolean trustPartContentLength;
+    private MemoryBudget memoryBudget;
+    private boolean chunkedTransferEncoding;
+    private int readAheadDepth;
+    private Executor readAheadExecutor;
+    private MultipartLimits limits;
+
+    /**
+     * Sets the minimum throughput the body must be received at, averaged over a sliding window. The check starts once
+     * the first window has elapsed.
+     * @param bytesPerSecond minimum average bytes per second.
+     * @param window the length of the sliding window the throughput is averaged over.
+     * @return this object.
+     */
+    public MultipartOptions setMinimumThroughput(long bytesPerSecond, Duration window) {
+        if (bytesPerSecond <= 0 || window.isNegative() || window.isZero()) {
+            throw new IllegalArgumentException("Throughput and window must be positive");
+        }
+        this.minBytesPerSecond = bytesPerSecond;
+        this.throughputWindow = window;
+        return this;
+    }
+
+    /**
+     * Sets the maximum time allowed to receive the headers of each part.
+     * @param headerTimeout maximum time between the start of a part and the end of its headers.
+     * @return this object.
+     */
+    public MultipartOptions setHeaderTimeout(Duration headerTimeout) {
+        this.headerTimeout = headerTimeout;
+        return this;
+    }
+
+    /**
+     * Sets the maximum time allowed to parse the whole body, including the time spent by the listener.
+     * @param deadline maximum time from the start of the processing.
+     * @return this object.
+     */
+    public MultipartOptions setDeadline(Duration deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * Sets a listener to be informed of the progress of the parsing. The listener is called at most once every
+     * {@code everyBytes} bytes read or every {@code everyTime}, whichever comes first, and once more at the end.
+     * Counters are updated per bulk read, so the listener is called at the granularity of the parser's buffer.
+     * @param listener the {@link ProgressListener} to be called.
+     * @param everyBytes minimum number of bytes read between calls, or 0 to not throttle by bytes.
+     * @param everyTime minimum time between calls, or {@code null} to not throttle by time.
+     * @return this object.
+     */
+    public MultipartOptions setProgressListener(ProgressListener listener, long everyBytes, Duration everyTime) {
+        this.progressListener = listener;
+        this.progressBytes = everyBytes;
+        this.progressInterval = everyTime;
+        return this;
+    }
+
+    /**
+     * Sets whether the Content-Length header of a part, when present, is trusted. If so, that many bytes of the part's
+     * body are delivered without scanning them for the delimiter, which is then expected right after them; if it isn't
+     * there, the rest of the body is scanned as usual. Only enable this for clients known to send correct lengths: a
+     * Content-Length longer than the actual body makes the part swallow the data that follows it.
+     * @param trustPartContentLength {@code true} to trust the Content-Length header of the parts.
+     * @return this object.
+     */
+    public MultipartOptions setTrustPartContentLength(boolean trustPartContentLength) {
+        this.trustPartContentLength = trustPartContentLength;
+        return this;
+    }
+
+    /**
+     * Sets the {@link MemoryBudget} the parser's buffers are reserved from. The same budget is meant to be shared by
+     * all the parses running at the same time.
+     * @param memoryBudget the budget, or {@code null} to not account for the memory used.
+     * @return this object.
+     */
+    public MultipartOptions setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * Sets whether the provided {@link java.io.InputStream} is the raw body of a request sent with
+     * {@code Transfer-Encoding: chunked}, e.g. straight from a socket. If so, the parser removes the chunk framing
+     * itself, in the same buffer it parses the multipart body from, instead of needing a separate decoding stream.
+     * The parser stops reading at the last chunk, although bytes following it (e.g. the next request on a keep-alive
+     * connection) may have been already read; they can be recovered with {@link MultipartReader#getInputAfterBody()}.
+     * Read-ahead can't be used along with this on connections carrying more data after the body, as the companion
+     * thread reads further.
+     * @param chunkedTransferEncoding {@code true} if the input uses chunked transfer coding.
+     * @return this object.
+     */
+    public MultipartOptions setChunkedTransferEncoding(boolean chunkedTransferEncoding) {
+        this.chunkedTransferEncoding = chunkedTransferEncoding;
+        return this;
+    }
+
+    /**
+     * Enables reading ahead from the provided {@link java.io.InputStream} on a companion thread, so waiting for the
+     * input (e.g. a slow socket) overlaps with parsing and with the listener's work. The companion fills a ring of
+     * buffers of the size of the parser's own buffer, which are reserved from the memory budget, if any. If the
+     * listener throws, the companion is cancelled and ends as soon as its current read returns.
+     * <p>
+     * The companion runs on the given {@link java.util.concurrent.Executor}, which should not queue the task (e.g.
+     * an executor creating a thread per task, or a pool with threads to spare); with {@code null}, a new daemon
+     * thread is started for each parse.
+     * @param depth number of buffers in the ring, or 0 to disable reading ahead.
+     * @param executor the {@link java.util.concurrent.Executor} to run the companion on, or {@code null} to start a
+     * daemon thread.
+     * @return this object.
+     */
+    public MultipartOptions setReadAhead(int depth, Executor executor) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Read-ahead depth can't be negative");
+        }
+        this.readAheadDepth = depth;
+        this.readAheadExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Sets the structural limits of the body, checked as it is read.
+     * @param limits the {@link MultipartLimits}, or {@code null} to not limit the body.
+     * @return this object.
+     */
+    public MultipartOptions setLimits(MultipartLimits limits) {
+        this.limits = limits;
+        return this;
+    }
+
+    /**
+     * Returns the minimum throughput, in bytes per second.
+     * @return the minimum throughput, or 0 if not set.
+     */
+    public long getMinBytesPerSecond() {
+        return minBytesPerSecond;
+    }
+
+    /**
+     * Returns the window the minimum throughput is averaged over.
+     * @return the sliding window, or {@code null} if not set.
+     */
+    public Duration getThroughputWindow() {
+        return throughputWindow;
+    }
+
+    /**
+     * Returns the maximum time allowed to receive the headers of each part.
+     * @return the header timeout, or {@code null} if not set.
+     */
+    public Duration getHeaderTimeout() {
+        return headerTimeout;
+    }
+
+    /**
+     * Returns the maximum time allowed to parse the whole body.
+     * @return the deadline, or {@code null} if not set.
+     */
+    public Duration getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Returns the listener to be informed of the progress of the parsing.
+     * @return the progress listener, or {@code null} if not set.
+     */
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * Returns the minimum number of bytes read between calls to the progress listener.
+     * @return the number of bytes, or 0 if not set.
+     */
+    public long getProgressBytes() {
+        return progressBytes;
+    }
+
+    /**
+     * Returns the minimum time between calls to the progress listener.
+     * @return the interval, or {@code null} if not set.
+     */
+    public Duration getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Returns whether the Content-Length header of the parts is trusted.
+     * @return {@code true} if the Content-Length header of the parts is trusted.
+     */
+    public boolean isTrustPartContentLength() {
+        return trustPartContentLength;
+    }
+
+    /**
+     * Returns the {@link MemoryBudget} the parser's buffers are reserved from.
+     * @return the memory budget, or {@code null} if not set.
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Returns whether the provided input uses chunked transfer coding.
+     * @return {@code true} if the input uses chunked transfer coding.
+     */
+    public boolean isChunkedTransferEncoding() {
+        return chunkedTransferEncoding;
+    }
+
+    /**
+     * Returns the number of buffers read ahead from the input on a companion thread.
+     * @return the read-ahead depth, or 0 if disabled.
+     */
+    public int getReadAheadDepth() {
+        return readAheadDepth;
+    }
+
+    /**
+     * Returns the {@link java.util.concurrent.Executor} the read-ahead companion runs on.
+     * @return the executor, or {@code null} to start a daemon thread.
+     */
+    public Executor getReadAheadExecutor() {
+        return readAheadExecutor;
+    }
+
+    /**
+     * Returns the structural limits of the body.
+     * @return the limits, or {@code null} if not set.
+     */
+    public MultipartLimits getLimits() {
+        return limits;
+    }
+
+}
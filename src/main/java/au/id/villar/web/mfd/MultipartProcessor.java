@@ -18,9 +18,11 @@ package au.id.villar.web.mfd;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 /**
- * Utility class to read a multipart body from and HTTP request.
+ * Utility class to read a multipart body from and HTTP request. For a pull-style alternative to the listener, see
+ * {@link MultipartReader}.
  */
 public final class MultipartProcessor {
 
@@ -39,19 +41,85 @@ public final class MultipartProcessor {
      */
     public static void process(String boundary, InputStream input, MultipartProcessorListener listener)
             throws IOException {
+        process(boundary, input, listener, new MultipartOptions());
+    }
+
+    /**
+     * Runs the process of reading multipart body, applying the given options. For each part in the multipart request,
+     * the provided listener will be called.
+     * @param boundary The boundary field as specified in the Content-Type header.
+     * @param input The {@link java.io.InputStream} representing the http body.
+     * @param listener The {@link MultipartProcessorListener} to be invoked on each part.
+     * @param options The {@link MultipartOptions} to apply.
+     * @throws MemoryBudgetExceededException If the read buffer can't be reserved from the memory budget in the options.
+     * @throws SlowUploadException If the body is received slower than allowed by the rate guards in the options. The
+     * guards are checked every time the parser reads from the provided {@link java.io.InputStream}, a read that
+     * blocks forever can only be interrupted by the stream itself (e.g. by a socket timeout).
+     * @throws MultipartLimitException If the body exceeds one of the limits in the options, as soon as it is detected.
+     * @throws IOException If the provided {@link java.io.InputStream} throws this exception, or if it is detected that
+     * the body is not actually multipart type.
+     */
+    public static void process(String boundary, InputStream input, MultipartProcessorListener listener,
+            MultipartOptions options) throws IOException {
 
-        int[] delimiter = calculateDelimiterBytes(boundary);
-        consumeInitialDelimiter(input, delimiter);
-        while(!endDetectedConsumingNewLine(input)) {
-            Part part = Part.readPart(input, delimiter);
-            listener.onPart(part);
-            int read;
-            do {
-                read = part.getBodyStream().read();
-            } while (read != -1);
+        try (MultipartReader reader = new MultipartReader(boundary, input, options)) {
+            Part part;
+            while ((part = reader.nextPart()) != null) {
+                listener.onPart(part);
+            }
         }
     }
 
+    /**
+     * Collects all the form fields (parts without filename) of a multipart body into a single {@link FormFields},
+     * copying their values into one growable byte arena. Parts with filename are passed to the given listener instead.
+     * @param boundary The boundary field as specified in the Content-Type header.
+     * @param input The {@link java.io.InputStream} representing the http body.
+     * @param maxBytes Maximum number of bytes allowed for all the form fields together.
+     * @param fileListener The {@link MultipartProcessorListener} to be invoked on each part with filename, it can be
+     * {@code null} to ignore them.
+     * @return A {@link FormFields} with all the form fields found.
+     * @throws IOException If the form fields exceed {@code maxBytes}, if the provided {@link java.io.InputStream}
+     * throws this exception, or if it is detected that the body is not actually multipart type.
+     */
+    public static FormFields collectFields(String boundary, InputStream input, long maxBytes,
+            MultipartProcessorListener fileListener) throws IOException {
+        return collectFields(boundary, input, maxBytes, fileListener, new MultipartOptions());
+    }
+
+    /**
+     * Same as {@link MultipartProcessor#collectFields(String, InputStream, long, MultipartProcessorListener)}, applying
+     * the given options.
+     * @param boundary The boundary field as specified in the Content-Type header.
+     * @param input The {@link java.io.InputStream} representing the http body.
+     * @param maxBytes Maximum number of bytes allowed for all the form fields together.
+     * @param fileListener The {@link MultipartProcessorListener} to be invoked on each part with filename, it can be
+     * {@code null} to ignore them.
+     * @param options The {@link MultipartOptions} to apply. If a memory budget is set, the arena stays reserved from it
+     * until the returned {@link FormFields} is closed.
+     * @return A {@link FormFields} with all the form fields found.
+     * @throws IOException If the form fields exceed {@code maxBytes}, if the provided {@link java.io.InputStream}
+     * throws this exception, or if it is detected that the body is not actually multipart type.
+     */
+    public static FormFields collectFields(String boundary, InputStream input, long maxBytes,
+            MultipartProcessorListener fileListener, MultipartOptions options) throws IOException {
+        FormFields fields = new FormFields(maxBytes, options.getMemoryBudget());
+        try {
+            process(boundary, input, part -> {
+                if (part.getFilename() == null) {
+                    fields.add(part);
+                } else if (fileListener != null) {
+                    fileListener.onPart(part);
+                }
+            }, options);
+        } catch (IOException | RuntimeException e) {
+            fields.close();
+            throw e;
+        }
+        fields.complete();
+        return fields;
+    }
+
     /**
      * Extracts the boundary value from a Content-Type value.
      * @param contentTypeValue the value of a content-type header, of type multipart.
@@ -61,22 +129,7 @@ public final class MultipartProcessor {
         return ParseUtils.getValueForKey("boundary", contentTypeValue);
     }
 
-    private static boolean endDetectedConsumingNewLine(InputStream input) throws IOException {
-        int ch1 = input.read();
-        int ch2 = input.read();
-        if (ch1 == '\r' && ch2 == '\n') {
-            return false;
-        }
-        if (ch1 == '-' && ch2 == '-') {
-            while (ch1 != -1) {
-                ch1 = input.read();
-            }
-            return true;
-        }
-        throw new IOException("Unexpected char sequence reading between parts");
-    }
-
-    private static int[] calculateDelimiterBytes(String boundary) {
+    static int[] calculateDelimiterBytes(String boundary) {
         byte[] boundaryBytes = boundary.getBytes();
         int[] delimiter = new int[boundaryBytes.length + 4];
 
@@ -90,21 +143,41 @@ public final class MultipartProcessor {
         return delimiter;
     }
 
-    private static void consumeInitialDelimiter(InputStream input, int[] delimiter) throws IOException {
+    /**
+     * Skips the preamble and the first delimiter, which is not preceded by CRLF. Bytes are scanned in bulk straight
+     * from the buffer with a {@link DelimiterMatcher}, so a preamble full of near misses is still read in linear time.
+     */
+    static void consumeInitialDelimiter(InputBuffer input, int[] delimiter) throws IOException {
+        consumeInitialDelimiter(input, delimiter, Long.MAX_VALUE);
+    }
 
-        int read = -1;
-        int suspectedDelimiterRead = 2;
-        while (suspectedDelimiterRead < delimiter.length && (read = input.read()) != -1) {
-            if (read == delimiter[suspectedDelimiterRead]) {
-                suspectedDelimiterRead++;
-            } else {
-                suspectedDelimiterRead = 2;
+    /**
+     * Same as {@link #consumeInitialDelimiter(InputBuffer, int[])}, but failing as soon as the preamble is known to be
+     * longer than {@code maxPreambleLength}.
+     */
+    static void consumeInitialDelimiter(InputBuffer input, int[] delimiter, long maxPreambleLength)
+            throws IOException {
+        DelimiterMatcher matcher = new DelimiterMatcher(Arrays.copyOfRange(delimiter, 2, delimiter.length));
+        long scanned = 0;
+        int state = 0;
+        while (input.position < input.limit || input.fill()) {
+            int end = matcher.scan(input.buffer, input.position, input.limit, state);
+            long preamble = end >= 0
+                    ? scanned + end - input.position - matcher.length()
+                    : scanned + input.limit - input.position - (-end - 1);
+            if (preamble > maxPreambleLength) {
+                throw new MultipartLimitException(MultipartLimitException.Limit.PREAMBLE_LENGTH, maxPreambleLength,
+                        "Multipart preamble too long");
             }
+            if (end >= 0) {
+                input.position = end;
+                return;
+            }
+            state = -end - 1;
+            scanned += input.limit - input.position;
+            input.position = input.limit;
         }
-
-        if (read == -1) {
-            throw new IOException("Initial delimiter not found");
-        }
+        throw new IOException("Initial delimiter not found");
     }
 
 }
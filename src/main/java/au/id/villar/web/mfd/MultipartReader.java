@@ -0,0 +1,279 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Pull-style reader of a multipart body: parts are read one at a time, only when the caller asks for them. The body of
+ * the current part can be read, partially or not at all, before asking for the next one; whatever is left of it is
+ * skipped then.
+ * <p>
+ * Example:
+ * <pre>{@code
+ * try (MultipartReader reader = new MultipartReader(boundary, input)) {
+ *     Part metadata = reader.nextPart();
+ *     String json = metadata.readBodyText();
+ *     Part file = reader.nextPart();
+ *     ...
+ * }
+ * }</pre>
+ * The parts can also be read as a lazy {@link java.util.stream.Stream}, which stops reading the body as soon as it
+ * short-circuits:
+ * <pre>{@code
+ * try (MultipartReader reader = new MultipartReader(boundary, input)) {
+ *     Optional<Part> avatar = reader.parts().filter(part -> "avatar".equals(part.getName())).findFirst();
+ *     ...
+ * }
+ * }</pre>
+ * A reader is not thread-safe and must be used by one thread at a time.
+ */
+public final class MultipartReader implements Closeable {
+
+    private final int[] delimiter;
+    private final InputStream input;
+    private final MultipartOptions options;
+    private final ThroughputGuard guard;
+    private final ProgressTracker progress;
+    private final MemoryBudget budget;
+    private final MultipartLimits limits;
+    private final int bufferSize;
+
+    private InputBuffer buffer;
+    private ReadAheadInputStream readAhead;
+    private Part current;
+    private Charset formCharset;
+    private long reserved;
+    private int parts;
+    private boolean finished;
+    private boolean closed;
+
+    /**
+     * Creates a reader. Nothing is read from the given stream until the first part is requested.
+     * @param boundary The boundary field as specified in the Content-Type header.
+     * @param input The {@link java.io.InputStream} representing the http body.
+     */
+    public MultipartReader(String boundary, InputStream input) {
+        this(boundary, input, new MultipartOptions());
+    }
+
+    /**
+     * Creates a reader applying the given options. Nothing is read from the given stream until the first part is
+     * requested.
+     * @param boundary The boundary field as specified in the Content-Type header.
+     * @param input The {@link java.io.InputStream} representing the http body.
+     * @param options The {@link MultipartOptions} to apply. Rate guards start counting when the reader is created.
+     */
+    public MultipartReader(String boundary, InputStream input, MultipartOptions options) {
+        this.delimiter = MultipartProcessor.calculateDelimiterBytes(boundary);
+        this.input = input;
+        this.options = options;
+        this.guard = ThroughputGuard.of(options);
+        this.progress = ProgressTracker.of(options);
+        this.budget = options.getMemoryBudget();
+        this.limits = options.getLimits() != null ? options.getLimits() : new MultipartLimits();
+        this.bufferSize = Math.max(InputBuffer.DEFAULT_SIZE, delimiter.length * 2);
+    }
+
+    /**
+     * Reads the headers of the next part, skipping whatever is left of the body of the current one.
+     * @return The next part, or {@code null} if there are no more parts.
+     * @throws MemoryBudgetExceededException If the read buffers can't be reserved from the memory budget in the
+     * options.
+     * @throws SlowUploadException If the body is received slower than allowed by the rate guards in the options.
+     * @throws MultipartLimitException If the body exceeds one of the limits in the options.
+     * @throws IOException If the reader is closed, if the provided {@link java.io.InputStream} throws this exception,
+     * or if it is detected that the body is not actually multipart type.
+     */
+    public Part nextPart() throws IOException {
+        if (closed) {
+            throw new IOException("Reader closed");
+        }
+        if (finished) {
+            return null;
+        }
+        if (buffer == null) {
+            start();
+        } else {
+            finishCurrent();
+        }
+        if (endDetectedConsumingNewLine(buffer, limits.getMaxEpilogueLength())) {
+            finished = true;
+            if (progress != null) {
+                progress.finish();
+            }
+            releaseBuffer();
+            return null;
+        }
+        if (++parts > limits.getMaxParts()) {
+            throw new MultipartLimitException(MultipartLimitException.Limit.PARTS, limits.getMaxParts(),
+                    "Too many parts");
+        }
+        if (guard != null) {
+            guard.startHeaders();
+        }
+        Part part = Part.readPart(buffer, delimiter, limits.getMaxHeaderLineLength(), limits.getMaxHeadersPerPart());
+        if (guard != null) {
+            guard.endHeaders();
+        }
+        if (progress != null) {
+            progress.startPart(part.getName());
+        }
+        part.setFormCharset(formCharset);
+        part.setMaxBodyBytes(limits.getMaxPartBytes());
+        if (options.isTrustPartContentLength()) {
+            part.trustContentLength();
+        }
+        if (Part.CHARSET_FIELD.equals(part.getName())) {
+            part.captureCharsetField();
+        }
+        current = part;
+        return part;
+    }
+
+    /**
+     * Returns a lazy, sequential {@link java.util.stream.Stream} of the remaining parts, each one read only when the
+     * stream asks for it. An {@link IOException} thrown while reading a part is rethrown wrapped in an
+     * {@link java.io.UncheckedIOException}. Closing the stream closes this reader.
+     * @return A {@link java.util.stream.Stream} of the remaining parts.
+     */
+    public Stream<Part> parts() {
+        Spliterator<Part> spliterator = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+
+            @Override
+            public boolean tryAdvance(Consumer<? super Part> action) {
+                Part part;
+                try {
+                    part = nextPart();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (part == null) {
+                    return false;
+                }
+                action.accept(part);
+                return true;
+            }
+
+        };
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+
+    /**
+     * Returns the provided {@link java.io.InputStream} as positioned right after the body, once all the parts have been
+     * read. With chunked transfer coding (see {@link MultipartOptions#setChunkedTransferEncoding(boolean)}) the parser
+     * may have read beyond the last chunk, e.g. the beginning of the next request on a keep-alive connection; the
+     * returned stream delivers those bytes first, and then the rest of the provided stream. Otherwise the body extends
+     * to the end of the provided stream, which is returned as is.
+     * @return an {@link java.io.InputStream} with what follows the body.
+     * @throws IllegalStateException If {@link #nextPart()} hasn't returned {@code null} yet, or if read-ahead is
+     * enabled in the options, as the companion thread may have consumed more than what is buffered.
+     */
+    public InputStream getInputAfterBody() {
+        if (!finished) {
+            throw new IllegalStateException("Body not fully read");
+        }
+        if (options.getReadAheadDepth() > 0) {
+            throw new IllegalStateException("Input read ahead beyond the body");
+        }
+        byte[] afterBody = buffer.bytesAfterBody();
+        return afterBody.length > 0 ? new SequenceInputStream(new ByteArrayInputStream(afterBody), input) : input;
+    }
+
+    /**
+     * Closes this reader, releasing its buffer and cancelling the read-ahead companion, if any. The provided
+     * {@link java.io.InputStream} is left open, as it belongs to the caller (e.g. a servlet container), and positioned
+     * wherever the reader stopped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        releaseBuffer();
+    }
+
+    private void start() throws IOException {
+        int depth = options.getReadAheadDepth();
+        if (budget != null) {
+            long bytes = (long)bufferSize * (1 + depth);
+            budget.reserve(bytes);
+            reserved = bytes;
+        }
+        InputStream source = input;
+        if (depth > 0) {
+            readAhead = new ReadAheadInputStream(input, bufferSize, depth, options.getReadAheadExecutor());
+            source = readAhead;
+        }
+        buffer = new InputBuffer(source, bufferSize, guard, progress, options.isChunkedTransferEncoding());
+        buffer.setMaxBytes(limits.getMaxTotalBytes());
+        MultipartProcessor.consumeInitialDelimiter(buffer, delimiter, limits.getMaxPreambleLength());
+    }
+
+    private void finishCurrent() throws IOException {
+        current.skipBody();
+        if (Part.CHARSET_FIELD.equals(current.getName())) {
+            Charset captured = current.getCapturedCharset();
+            formCharset = captured != null ? captured : formCharset;
+        }
+        current = null;
+    }
+
+    private void releaseBuffer() {
+        if (readAhead != null) {
+            readAhead.close();
+            readAhead = null;
+        }
+        if (reserved > 0) {
+            budget.release(reserved);
+            reserved = 0;
+        }
+    }
+
+    private static boolean endDetectedConsumingNewLine(InputStream input, long maxEpilogueLength)
+            throws IOException {
+        int ch1 = input.read();
+        int ch2 = input.read();
+        if (ch1 == '\r' && ch2 == '\n') {
+            return false;
+        }
+        if (ch1 == '-' && ch2 == '-') {
+            long epilogue = 0;
+            long skipped;
+            while ((skipped = input.skip(InputBuffer.DEFAULT_SIZE)) > 0) {
+                epilogue += skipped;
+                if (epilogue > maxEpilogueLength) {
+                    throw new MultipartLimitException(MultipartLimitException.Limit.EPILOGUE_LENGTH,
+                            maxEpilogueLength, "Multipart epilogue too long");
+                }
+            }
+            return true;
+        }
+        throw new IOException("Unexpected char sequence reading between parts");
+    }
+
+}
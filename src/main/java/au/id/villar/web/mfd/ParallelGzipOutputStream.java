@@ -0,0 +1,250 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * OutputStream that compresses what is written to it into a standard gzip member, splitting the data into fixed-size
+ * blocks that are compressed concurrently on the given {@link java.util.concurrent.Executor}, in the same way pigz
+ * does: each block is deflated with the last 32 KiB of the previous block as dictionary and ended with a sync flush,
+ * so the compressed blocks just need to be written in order. At most {@code maxInFlight} blocks are being compressed
+ * at any time; once that limit is reached, writing waits for the oldest block, bounding the memory used.
+ * <p>
+ * It can be used as a sink for part bodies:
+ * <pre>{@code
+ * try (OutputStream gzip = new ParallelGzipOutputStream(archive, executor)) {
+ *     part.getBodyStream().transferTo(gzip);
+ * }
+ * }</pre>
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    /** Default size of each block. */
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final byte[] HEADER = {0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff};
+
+    private final OutputStream out;
+    private final Executor executor;
+    private final int blockSize;
+    private final int maxInFlight;
+    private final int level;
+    private final MemoryBudget budget;
+
+    private final Deque<CompletableFuture<byte[]>> inFlight = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private long totalSize;
+
+    private byte[] previousBlock;
+    private byte[] block;
+    private int blockLength;
+    private boolean headerWritten;
+    private boolean finished;
+
+    /**
+     * Creates a stream with the default block size and compression level, allowing as many blocks in flight as
+     * available processors, times two.
+     * @param out the stream the gzip member is written to.
+     * @param executor the {@link java.util.concurrent.Executor} used to compress blocks.
+     */
+    public ParallelGzipOutputStream(OutputStream out, Executor executor) {
+        this(out, executor, DEFAULT_BLOCK_SIZE, Runtime.getRuntime().availableProcessors() * 2,
+                Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a stream.
+     * @param out the stream the gzip member is written to.
+     * @param executor the {@link java.util.concurrent.Executor} used to compress blocks.
+     * @param blockSize the size of each block, in bytes.
+     * @param maxInFlight the maximum number of blocks being compressed at the same time.
+     * @param level the compression level, as used by {@link java.util.zip.Deflater}.
+     */
+    public ParallelGzipOutputStream(OutputStream out, Executor executor, int blockSize, int maxInFlight, int level) {
+        this(out, executor, blockSize, maxInFlight, level, null);
+    }
+
+    /**
+     * Creates a stream whose blocks in flight are reserved from the given budget. When the budget is exhausted, writing
+     * waits for the oldest block instead, so fewer blocks are compressed at the same time; only when there are none in
+     * flight it waits for the budget, up to its maximum wait.
+     * @param out the stream the gzip member is written to.
+     * @param executor the {@link java.util.concurrent.Executor} used to compress blocks.
+     * @param blockSize the size of each block, in bytes.
+     * @param maxInFlight the maximum number of blocks being compressed at the same time.
+     * @param level the compression level, as used by {@link java.util.zip.Deflater}.
+     * @param budget the {@link MemoryBudget} to reserve the blocks from, or {@code null} to not account for them.
+     */
+    public ParallelGzipOutputStream(OutputStream out, Executor executor, int blockSize, int maxInFlight, int level,
+            MemoryBudget budget) {
+        if (blockSize <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("Block size and blocks in flight must be positive");
+        }
+        this.out = out;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.maxInFlight = maxInFlight;
+        this.level = level;
+        this.budget = budget;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (finished) {
+            throw new IOException("Stream closed");
+        }
+        while (length > 0) {
+            int count = Math.min(length, blockSize - blockLength);
+            System.arraycopy(bytes, offset, block, blockLength, count);
+            blockLength += count;
+            offset += count;
+            length -= count;
+            if (blockLength == blockSize) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Compresses the remaining data and writes the end of the gzip member, without closing the underlying stream. It
+     * is only attempted once: if it fails, later calls do nothing and the blocks still in flight are never written.
+     * @throws IOException if the underlying stream throws it, or if compressing a block fails.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        submitBlock(true);
+        while (!inFlight.isEmpty()) {
+            writeOldest();
+        }
+        long crcValue = crc.getValue();
+        out.write(new byte[] {
+                (byte)crcValue, (byte)(crcValue >> 8), (byte)(crcValue >> 16), (byte)(crcValue >> 24),
+                (byte)totalSize, (byte)(totalSize >> 8), (byte)(totalSize >> 16), (byte)(totalSize >> 24)});
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            // blocks left after a failure are dropped, but their memory is only released once they stop compressing
+            for (CompletableFuture<byte[]> block : inFlight) {
+                block.cancel(false);
+                if (budget != null) {
+                    block.whenComplete((compressed, error) -> budget.release(blockSize));
+                }
+            }
+            inFlight.clear();
+            out.close();
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        if (!headerWritten) {
+            out.write(HEADER);
+            headerWritten = true;
+        }
+        while (inFlight.size() >= maxInFlight) {
+            writeOldest();
+        }
+        if (budget != null) {
+            while (!budget.tryReserve(blockSize)) {
+                if (inFlight.isEmpty()) {
+                    budget.reserve(blockSize);
+                    break;
+                }
+                writeOldest();
+            }
+        }
+        byte[] input = block;
+        int inputLength = blockLength;
+        byte[] dictionary = previousBlock;
+        crc.update(input, 0, inputLength);
+        totalSize += inputLength;
+        inFlight.add(CompletableFuture.supplyAsync(() -> deflate(input, inputLength, dictionary, last), executor));
+
+        previousBlock = input;
+        block = last ? null : new byte[blockSize];
+        blockLength = 0;
+    }
+
+    private byte[] deflate(byte[] input, int inputLength, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                int dictionaryLength = Math.min(DICTIONARY_SIZE, dictionary.length);
+                deflater.setDictionary(dictionary, dictionary.length - dictionaryLength, dictionaryLength);
+            }
+            deflater.setInput(input, 0, inputLength);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(inputLength / 2 + 64);
+            byte[] buffer = new byte[Math.max(64, Math.min(inputLength, 64 * 1024))];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeOldest() throws IOException {
+        CompletableFuture<byte[]> oldest = inFlight.removeFirst();
+        try {
+            out.write(oldest.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a compressed block");
+        } catch (ExecutionException e) {
+            throw new IOException("Error compressing block", e.getCause());
+        } finally {
+            if (budget != null) {
+                budget.release(blockSize);
+            }
+        }
+    }
+
+}
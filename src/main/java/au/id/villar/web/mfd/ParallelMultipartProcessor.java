@@ -0,0 +1,254 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Utility class to read a multipart body already stored in a file, using several threads. The file is split in chunks
+ * and all the delimiters are found in parallel on a {@link java.util.concurrent.ForkJoinPool}; parts are then located
+ * (reading only their headers) and their bodies are read through positioned reads, so the listeners can run
+ * concurrently. Parts, headers and bodies are the same {@link MultipartProcessor#process(String,
+ * java.io.InputStream, MultipartProcessorListener)} would report for the same content.
+ */
+public final class ParallelMultipartProcessor {
+
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private ParallelMultipartProcessor() throws IllegalAccessException {
+        throw new IllegalAccessException("No instances for you");
+    }
+
+    /**
+     * Reads a multipart body stored in a file, running the provided listener concurrently for different parts. The
+     * listener must be thread-safe. This method returns once all the listeners have returned.
+     * @param boundary The boundary field as specified in the Content-Type header.
+     * @param file The file containing the http body.
+     * @param pool The {@link java.util.concurrent.ForkJoinPool} used to find delimiters and to run the listeners.
+     * @param listener The {@link MultipartProcessorListener} to be invoked on each part.
+     * @throws IOException If reading the file throws this exception, if any listener throws it, or if it is detected
+     * that the body is not actually multipart type.
+     */
+    public static void process(String boundary, Path file, ForkJoinPool pool, MultipartProcessorListener listener)
+            throws IOException {
+        process(boundary, file, pool, listener, false, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Reads a multipart body stored in a file, finding delimiters in parallel but calling the provided listener
+     * sequentially, in the same order as the parts appear in the body. The listener is called from the current thread.
+     * @param boundary The boundary field as specified in the Content-Type header.
+     * @param file The file containing the http body.
+     * @param pool The {@link java.util.concurrent.ForkJoinPool} used to find delimiters.
+     * @param listener The {@link MultipartProcessorListener} to be invoked on each part.
+     * @throws IOException If reading the file throws this exception, if the listener throws it, or if it is detected
+     * that the body is not actually multipart type.
+     */
+    public static void processInOrder(String boundary, Path file, ForkJoinPool pool,
+            MultipartProcessorListener listener) throws IOException {
+        process(boundary, file, pool, listener, true, DEFAULT_CHUNK_SIZE);
+    }
+
+    static void process(String boundary, Path file, ForkJoinPool pool, MultipartProcessorListener listener,
+            boolean inOrder, int chunkSize) throws IOException {
+
+        int[] delimiter = MultipartProcessor.calculateDelimiterBytes(boundary);
+        DelimiterMatcher matcher = new DelimiterMatcher(delimiter);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ForkJoinTask<long[]> search = pool.submit(new DelimiterSearch(channel, matcher, 0, size,
+                    chunkSize));
+
+            FileRegionInputStream preamble = new FileRegionInputStream(channel, 0, size);
+            InputBuffer preambleBuffer = new InputBuffer(preamble, Math.max(InputBuffer.DEFAULT_SIZE,
+                    delimiter.length * 2));
+            MultipartProcessor.consumeInitialDelimiter(preambleBuffer, delimiter);
+            long position = preamble.getPosition() - preambleBuffer.available();
+
+            long[] delimiters = join(search);
+            List<ForkJoinTask<?>> listenerTasks = new ArrayList<>();
+            Charset formCharset = null;
+            try {
+                while (!endDetected(channel, position)) {
+                    FileRegionInputStream headers = new FileRegionInputStream(channel, position + 2, size);
+                    InputBuffer headersBuffer = new InputBuffer(headers, 1024);
+                    Part part = Part.readPart(headersBuffer, delimiter);
+                    long bodyStart = headers.getPosition() - headersBuffer.available();
+                    long bodyEnd = firstAtOrAfter(delimiters, bodyStart);
+                    if (bodyEnd == -1) {
+                        throw new IOException("Unexpected end of stream reading multipart");
+                    }
+                    part.setBody(new InputBuffer(new FileRegionInputStream(channel, bodyStart,
+                            bodyEnd + delimiter.length), Math.max(InputBuffer.DEFAULT_SIZE, delimiter.length * 2)),
+                            delimiter, bodyEnd - bodyStart);
+                    part.setFormCharset(formCharset);
+                    if (Part.CHARSET_FIELD.equals(part.getName())) {
+                        Charset charset = readCharsetField(channel, bodyStart, bodyEnd);
+                        formCharset = charset != null ? charset : formCharset;
+                    }
+
+                    if (inOrder) {
+                        listener.onPart(part);
+                    } else {
+                        listenerTasks.add(pool.submit(() -> {
+                            try {
+                                listener.onPart(part);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }));
+                    }
+                    position = bodyEnd + delimiter.length;
+                }
+            } catch (IOException | RuntimeException e) {
+                for (ForkJoinTask<?> task : listenerTasks) {
+                    task.quietlyJoin();
+                }
+                throw e;
+            }
+            IOException failure = null;
+            for (ForkJoinTask<?> task : listenerTasks) {
+                task.quietlyJoin();
+                if (failure == null && task.getException() != null) {
+                    Throwable e = task.getException();
+                    if (e instanceof UncheckedIOException) {
+                        failure = ((UncheckedIOException)e).getCause();
+                    } else if (e instanceof RuntimeException) {
+                        throw (RuntimeException)e;
+                    } else {
+                        throw (Error)e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static boolean endDetected(FileChannel channel, long position) throws IOException {
+        ByteBuffer chars = ByteBuffer.allocate(2);
+        while (chars.hasRemaining() && channel.read(chars, position + chars.position()) != -1) {
+            // keep reading
+        }
+        int ch1 = chars.position() > 0 ? chars.get(0) : -1;
+        int ch2 = chars.position() > 1 ? chars.get(1) : -1;
+        if (ch1 == '\r' && ch2 == '\n') {
+            return false;
+        }
+        if (ch1 == '-' && ch2 == '-') {
+            return true;
+        }
+        throw new IOException("Unexpected char sequence reading between parts");
+    }
+
+    private static Charset readCharsetField(FileChannel channel, long bodyStart, long bodyEnd) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate((int)Math.min(bodyEnd - bodyStart, 64));
+        while (value.hasRemaining() && channel.read(value, bodyStart + value.position()) != -1) {
+            // keep reading
+        }
+        return Part.toCharset(new String(value.array(), 0, value.position(), StandardCharsets.US_ASCII).trim());
+    }
+
+    private static long firstAtOrAfter(long[] positions, long position) {
+        int index = Arrays.binarySearch(positions, position);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index < positions.length ? positions[index] : -1;
+    }
+
+    /**
+     * Finds the positions of all the occurrences of the delimiter starting in {@code [from, to)}, including those
+     * crossing {@code to}, splitting the range in chunks searched in parallel.
+     */
+    private static final class DelimiterSearch extends RecursiveTask<long[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient FileChannel channel;
+        private final transient DelimiterMatcher matcher;
+        private final long from;
+        private final long to;
+        private final int chunkSize;
+
+        private DelimiterSearch(FileChannel channel, DelimiterMatcher matcher, long from, long to, int chunkSize) {
+            this.channel = channel;
+            this.matcher = matcher;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from <= chunkSize) {
+                try {
+                    return searchChunk();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            long middle = from + (to - from) / 2;
+            DelimiterSearch left = new DelimiterSearch(channel, matcher, from, middle, chunkSize);
+            DelimiterSearch right = new DelimiterSearch(channel, matcher, middle, to, chunkSize);
+            right.fork();
+            long[] leftResult = left.compute();
+            long[] rightResult = right.join();
+            long[] result = Arrays.copyOf(leftResult, leftResult.length + rightResult.length);
+            System.arraycopy(rightResult, 0, result, leftResult.length, rightResult.length);
+            return result;
+        }
+
+        private long[] searchChunk() throws IOException {
+            ByteBuffer chunk = ByteBuffer.allocate((int)(to - from) + matcher.length() - 1);
+            while (chunk.hasRemaining() && channel.read(chunk, from + chunk.position()) != -1) {
+                // keep reading
+            }
+            int[] found = matcher.indexesOf(chunk.array(), 0, chunk.position());
+            long[] positions = new long[found.length];
+            for (int x = 0; x < found.length; x++) {
+                positions[x] = from + found[x];
+            }
+            return positions;
+        }
+
+    }
+
+}
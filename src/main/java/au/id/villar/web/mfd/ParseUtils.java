@@ -28,12 +28,23 @@ final class ParseUtils {
         throw new IllegalAccessException("No instances for you");
     }
 
-    static String readHeaderName(InputStream inputStream) throws IOException {
-        return readToDelimiter(inputStream, ':', true);
+    /**
+     * Reads a header name up to the colon, or an empty string if the line is empty.
+     * @param maxLineLength maximum number of bytes of the header line.
+     * @throws MultipartLimitException if there are more than {@code maxLineLength} bytes before the colon.
+     */
+    static String readHeaderName(InputStream inputStream, int maxLineLength) throws IOException {
+        return readToDelimiter(inputStream, ':', true, 0, maxLineLength);
     }
 
-    static String readRestOfLine(InputStream inputStream) throws IOException {
-        String value = readToDelimiter(inputStream, '\r', false);
+    /**
+     * Reads a header value up to the end of the line.
+     * @param lineLength number of bytes of the header line already read.
+     * @param maxLineLength maximum number of bytes of the header line.
+     * @throws MultipartLimitException if the header line has more than {@code maxLineLength} bytes.
+     */
+    static String readRestOfLine(InputStream inputStream, int lineLength, int maxLineLength) throws IOException {
+        String value = readToDelimiter(inputStream, '\r', false, lineLength, maxLineLength);
         int read = inputStream.read();
         if (read != '\n') {
             throw new IOException("Unexpected character reading value");
@@ -41,114 +52,21 @@ final class ParseUtils {
         return value;
     }
 
+    /**
+     * Returns the decoded value of the given parameter of a header value. To look for several parameters of the same
+     * header value, parse it once with {@link HeaderParameters#parse(String)} instead.
+     */
     static String getValueForKey(String key, String headerValue) {
-
-        final int SCAN_FOR_KEY = 0,     SKIP_KEY = 1,         SKIP_VALUE = 2,       SKIP_TO_QUOTE = 3,
-                  SKIP_TO_SPACE = 4,    VALUE_START = 5,      READ_VALUE = 6,       READ_TO_QUOTE = 7,
-                  READ_TO_SPACE = 8;
-
-        int state = SKIP_TO_SPACE;
-        int valueStart = -1;
-
-        for (int x = 0; x < headerValue.length(); x++) {
-            switch (state) {
-
-                case SCAN_FOR_KEY -> {
-                    int ch = headerValue.charAt(x);
-                    if (indexOfIgnoreCase(headerValue, key, x) == x) {
-                        x += key.length() - 1;
-                        state = VALUE_START;
-                    } else if (ch != ' ' && ch != '\t') {
-                        state = SKIP_KEY;
-                    }
-                }
-
-                case SKIP_KEY -> {
-                    if (headerValue.charAt(x) == '=') {
-                        state = SKIP_VALUE;
-                    }
-                }
-
-                case SKIP_VALUE -> state = headerValue.charAt(x) == '"' ? SKIP_TO_QUOTE : SKIP_TO_SPACE;
-
-                case SKIP_TO_QUOTE -> {
-                    if (headerValue.charAt(x) == '"') {
-                        state = SKIP_TO_SPACE;
-                    }
-                }
-
-                case SKIP_TO_SPACE -> {
-                    if (headerValue.charAt(x) == ' ') {
-                        state = SCAN_FOR_KEY;
-                    }
-                }
-
-                case VALUE_START -> state = headerValue.charAt(x) == '=' ? READ_VALUE : SCAN_FOR_KEY;
-
-                case READ_VALUE -> {
-                    state = headerValue.charAt(x) == '"' ? READ_TO_QUOTE : READ_TO_SPACE;
-                    valueStart = state == READ_TO_QUOTE ? x + 1 : x;
-                }
-
-                case READ_TO_QUOTE -> {
-                    if (headerValue.charAt(x) == '"') {
-                        return unescapeValue(headerValue, valueStart, x);
-                    }
-                }
-
-                case READ_TO_SPACE -> {
-                    if (headerValue.charAt(x) == ' ') {
-                        return unescapeValue(headerValue, valueStart, x);
-                    }
-                }
-            }
-        }
-        return state == READ_TO_SPACE ? unescapeValue(headerValue, valueStart, headerValue.length()) : null;
-    }
-
-    private static String unescapeValue(String headerValue, int start, int end) {
-        String rawValue = headerValue.substring(start, end);
-        int percentagePos = rawValue.indexOf('%');
-        if (percentagePos == -1) {
-            return rawValue;
-        }
-
-        StringBuilder builder = new StringBuilder(rawValue);
-        builder.ensureCapacity(rawValue.length() + 6); // 6 is just an educated guess here
-        percentagePos--;
-
-        while ((percentagePos = builder.indexOf("%", percentagePos + 1)) != -1
-                && percentagePos + 2 < builder.length()) {
-            int ch1 = hexToDecimal(builder.charAt(percentagePos + 1));
-            int ch2 = hexToDecimal(builder.charAt(percentagePos + 2));
-            if (ch1 != -1 && ch2 != -1) {
-                char actualChar = (char)(ch1 * 0x10 + ch2);
-                builder.setCharAt(percentagePos, actualChar);
-                builder.delete(percentagePos + 1, percentagePos + 3);
-            }
-            percentagePos++;
-        }
-        return builder.toString();
+        return HeaderParameters.parse(headerValue).get(key);
     }
 
-    private static int hexToDecimal(char ch) {
-        if (ch >= '0' && ch <= '9') {
-            return ch & 0xF;
-        }
-        ch |= 0x20;
-        if (ch >= 'a' && ch <= 'z') {
-            return ch - 87;
-        }
-        return -1;
-    }
-
-    private static String readToDelimiter(InputStream inputStream, char delimiter, boolean toLowerCase)
-            throws IOException {
+    private static String readToDelimiter(InputStream inputStream, char delimiter, boolean toLowerCase, int length,
+            int maxLength) throws IOException {
         int lowerBit = toLowerCase ? 0x20 : 0;
         int read;
-        do {
-            read = readExpected(inputStream);
-        } while (read == ' ');
+        while ((read = readExpected(inputStream)) == ' ') {
+            length = checkLength(length, maxLength);
+        }
         if (read == '\r') {
             read = readExpected(inputStream);
             if (read != '\n') {
@@ -157,28 +75,19 @@ final class ParseUtils {
             return "";
         }
         StringBuilder headerBuilder = new StringBuilder();
-        headerBuilder.append((char)(read | lowerBit));
-        while ((read = readExpected(inputStream)) != delimiter) {
+        do {
+            length = checkLength(length, maxLength);
             headerBuilder.append((char)(read | lowerBit));
-        }
+        } while ((read = readExpected(inputStream)) != delimiter);
         return headerBuilder.toString();
     }
 
-    private static int indexOfIgnoreCase(String string, String substring, int fromIndex) {
-
-        // yes, I already know about  string.toLowerCase().indexOf(substring.toLowerCase())
-
-        int limit = string.length() - substring.length();
-        for (int x = fromIndex; x <= limit; x++) {
-            int y = 0;
-            while (y < substring.length() && (substring.charAt(y) | 0x20) == (string.charAt(y + x) | 0x20)) {
-                y++;
-            }
-            if (y == substring.length()) {
-                return x;
-            }
+    private static int checkLength(int length, int maxLength) throws MultipartLimitException {
+        if (length >= maxLength) {
+            throw new MultipartLimitException(MultipartLimitException.Limit.HEADER_LINE_LENGTH, maxLength,
+                    "Part header line too long");
         }
-        return -1;
+        return length + 1;
     }
 
     private static int readExpected(InputStream inputStream) throws IOException {
@@ -16,10 +16,11 @@
 
 package au.id.villar.web.mfd;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -32,10 +33,15 @@ import java.util.Set;
  */
 public class Part {
 
+    static final String CHARSET_FIELD = "_charset_";
+    private static final int MAX_CHARSET_NAME = 64;
+
     private final Map<String, Object> headerValues = new HashMap<>(2);
+    private final Map<String, HeaderParameters> headerParameters = new HashMap<>(2);
     private String name;
     private String filename;
-    private InputStream input;
+    private MultipartInputStream input;
+    private Charset formCharset;
 
     private Part() {}
 
@@ -84,6 +90,20 @@ public class Part {
         return headerValues.keySet();
     }
 
+    /**
+     * Retrieves a parameter from the first value found for a header, like "charset" in a Content-Type header. Quoted
+     * values are unescaped and percent-encoded UTF-8 sequences are decoded. If there is also an extended parameter as
+     * defined by RFC-5987 (e.g. {@code filename*=UTF-8''na%C3%AFve.txt}), its value is returned instead. Each header
+     * value is parsed only once, no matter how many of its parameters are requested.
+     * @param headerName the name of the header.
+     * @param parameterName the name of the parameter, case-insensitive.
+     * @return The decoded value of the parameter, or {@code null} if the header or the parameter weren't found.
+     */
+    public String getHeaderParameter(String headerName, String parameterName) {
+        HeaderParameters parameters = getParameters(headerName.toLowerCase());
+        return parameters != null ? parameters.get(parameterName) : null;
+    }
+
     /**
      * Returns the field "name" from the Content-Disposition header.
      * @return The value of the field "name" from the Content-Disposition header, or {@code null} if it wasn't found.
@@ -93,7 +113,7 @@ public class Part {
     }
 
     /**
-     * Returns the field "filename" from the Content-Disposition header.
+     * Returns the field "filename" from the Content-Disposition header, or the field "filename*" if present.
      * @return The value of the field "filename" from the Content-Disposition header, or {@code null} otherwise.
      */
     public String getFilename() {
@@ -103,8 +123,8 @@ public class Part {
     /**
      * Returns the stream representing this part's body. This {@link java.io.InputStream} is not reset every time this
      * method is called, it rather returns the same instance every time. This instance may return EOF (-1) if it has
-     * been already consumed by one of the convenience methods {@link Part#readBodyText()} or
-     * {@link Part#readBodyText(Charset)}.
+     * been already consumed by one of the convenience methods {@link Part#readBodyText()},
+     * {@link Part#readBodyText(Charset)} or {@link Part#readBodyText(Charset, int)}.
      * @return the {@link java.io.InputStream} representing this part's body.
      */
     public InputStream getBodyStream() {
@@ -112,15 +132,39 @@ public class Part {
     }
 
     /**
-     * Convenience method to read this part's body into a single {@link java.lang.String}.
+     * Returns a {@link java.nio.channels.ReadableByteChannel} view of this part's body, useful to read it in chunks
+     * into caller-supplied {@link java.nio.ByteBuffer}s, either heap or direct. Bytes are copied straight from the
+     * parser's own buffer, without any intermediate array. The channel and the stream returned by
+     * {@link Part#getBodyStream()} share the same position. Closing the channel doesn't affect the rest of the
+     * multipart body.
+     * @return the {@link java.nio.channels.ReadableByteChannel} representing this part's body.
+     */
+    public ReadableByteChannel getBodyChannel() {
+        return input;
+    }
+
+    /**
+     * Returns the charset this part's text is encoded with: the "charset" parameter of its Content-Type header if
+     * present, otherwise the charset given by a previous "_charset_" field in the same form (as allowed by RFC-7578,
+     * section 4.6), otherwise UTF-8.
+     * @return The {@link java.nio.charset.Charset} used by {@link Part#readBodyText()}.
+     */
+    public Charset getCharset() {
+        Charset charset = getDeclaredCharset();
+        if (charset != null) {
+            return charset;
+        }
+        return formCharset != null ? formCharset : StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Convenience method to read this part's body into a single {@link java.lang.String}, using the charset returned by
+     * {@link Part#getCharset()}.
      * @return A {@link java.lang.String} containing this part's body.
      * @throws IOException If the underlying {@link java.io.InputStream} throws this exception.
      */
     public String readBodyText() throws IOException {
-        try (ByteArrayOutputStream buffer = new ByteArrayOutputStream()) {
-            input.transferTo(buffer);
-            return buffer.toString();
-        }
+        return readBodyText(getCharset(), Integer.MAX_VALUE);
     }
 
     /**
@@ -131,19 +175,54 @@ public class Part {
      * @throws IOException If the underlying {@link java.io.InputStream} throws this exception.
      */
     public String readBodyText(Charset charset) throws IOException {
-        try (ByteArrayOutputStream buffer = new ByteArrayOutputStream()) {
-            input.transferTo(buffer);
-            return buffer.toString(charset);
-        }
+        return readBodyText(charset, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Convenience method to read this part's body into a single {@link java.lang.String}, failing if it is longer than
+     * the given maximum. The body is decoded in a single pass straight from the parser's buffer.
+     * @param charset The {@link java.nio.charset.Charset} used to parse this Part's body into a
+     * {@link java.lang.String}
+     * @param maxLength The maximum number of chars allowed.
+     * @return A {@link java.lang.String} containing this part's body.
+     * @throws IOException If the body is longer than {@code maxLength} chars, or if the underlying
+     * {@link java.io.InputStream} throws this exception.
+     */
+    public String readBodyText(Charset charset, int maxLength) throws IOException {
+        return input.readText(charset, maxLength, getContentLength());
+    }
+
+    /**
+     * Returns a {@link PartTee} to deliver the rest of this part's body to several sinks, reading it only once.
+     * @return a new {@link PartTee} reading from this part's body.
+     */
+    public PartTee tee() {
+        return new PartTee(input);
     }
 
     static Part readPart(InputStream inputStream, int[] delimiter) throws IOException {
+        return readPart(inputStream, delimiter, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads the headers of a part, failing as soon as a header line is longer than {@code maxLineLength} or there are
+     * more than {@code maxHeaders} headers.
+     */
+    static Part readPart(InputStream inputStream, int[] delimiter, int maxLineLength, int maxHeaders)
+            throws IOException {
+        inputStream = InputBuffer.of(inputStream, delimiter.length * 2);
         Part part = new Part();
+        int headers = 0;
         String headerName;
         do {
-            headerName = ParseUtils.readHeaderName(inputStream);
+            headerName = ParseUtils.readHeaderName(inputStream, maxLineLength);
             if (!headerName.isEmpty()) {
-                String value = ParseUtils.readRestOfLine(inputStream);
+                if (++headers > maxHeaders) {
+                    throw new MultipartLimitException(MultipartLimitException.Limit.HEADERS_PER_PART, maxHeaders,
+                            "Too many headers in part");
+                }
+                // the colon counts as part of the line
+                String value = ParseUtils.readRestOfLine(inputStream, headerName.length() + 1, maxLineLength);
                 part.addValue(headerName, value);
                 if ("content-disposition".equals(headerName)) {
                     part.assignNameAndFilename(value);
@@ -154,6 +233,100 @@ public class Part {
         return part;
     }
 
+    /**
+     * Replaces the body stream with one reading exactly {@code length} bytes from the given source, which is expected
+     * to be followed by the delimiter.
+     */
+    void setBody(InputStream source, int[] delimiter, long length) {
+        input = new MultipartInputStream(source, delimiter);
+        input.setKnownLength(length);
+    }
+
+    void skipBody() throws IOException {
+        input.skipRemaining();
+    }
+
+    /**
+     * Makes the body stream trust the Content-Length header of this part, if present.
+     */
+    void trustContentLength() {
+        long contentLength = getContentLength();
+        if (contentLength != -1) {
+            input.setKnownLength(contentLength);
+        }
+    }
+
+    /**
+     * Makes reading the body fail once it is found to have more than {@code maxBytes} bytes.
+     */
+    void setMaxBodyBytes(long maxBytes) {
+        input.setMaxLength(maxBytes);
+    }
+
+    void setFormCharset(Charset formCharset) {
+        this.formCharset = formCharset;
+    }
+
+    /**
+     * Starts recording the value of this part, expected to be a "_charset_" field, as it is consumed.
+     */
+    void captureCharsetField() {
+        input.captureBody(MAX_CHARSET_NAME);
+    }
+
+    /**
+     * Returns the charset recorded after calling {@link Part#captureCharsetField()} and consuming the body.
+     */
+    Charset getCapturedCharset() {
+        String name = input.capturedText(StandardCharsets.US_ASCII);
+        return name != null ? toCharset(name.trim()) : null;
+    }
+
+    /**
+     * Returns the "charset" parameter of the Content-Type header, or {@code null} if not present or not supported.
+     */
+    Charset getDeclaredCharset() {
+        HeaderParameters parameters = getParameters("content-type");
+        return parameters != null ? toCharset(parameters.get("charset")) : null;
+    }
+
+    private HeaderParameters getParameters(String headerName) {
+        HeaderParameters parameters = headerParameters.get(headerName);
+        if (parameters == null) {
+            String value = getHeaderValue(headerName);
+            if (value == null) {
+                return null;
+            }
+            parameters = HeaderParameters.parse(value);
+            headerParameters.put(headerName, parameters);
+        }
+        return parameters;
+    }
+
+    private long getContentLength() {
+        String contentLength = getHeaderValue("content-length");
+        if (contentLength != null) {
+            try {
+                long length = Long.parseLong(contentLength.trim());
+                return length >= 0 ? length : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    static Charset toCharset(String name) {
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private void addValue(String headerName, String value) {
         Object oldValue = headerValues.get(headerName);
@@ -174,12 +347,15 @@ public class Part {
 
     private void assignNameAndFilename(String headerValue) {
 
-        if(!headerValue.startsWith("form-data")) {
+        HeaderParameters parameters = HeaderParameters.parse(headerValue);
+        headerParameters.putIfAbsent("content-disposition", parameters);
+
+        if(!parameters.getValue().equalsIgnoreCase("form-data")) {
             return;
         }
 
-        String nameValue = ParseUtils.getValueForKey("name", headerValue);
-        String filenameValue = ParseUtils.getValueForKey("filename", headerValue);
+        String nameValue = parameters.get("name");
+        String filenameValue = parameters.get("filename");
 
         if (nameValue != null) {
             this.name = nameValue;
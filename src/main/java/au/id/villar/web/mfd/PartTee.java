@@ -0,0 +1,549 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers the body of a part to several sinks in a single pass: each span of the body is read once, straight from the
+ * parser's buffer, and written to every sink. Inline sinks are written on the caller's thread, in the order they were
+ * added; asynchronous sinks are written on their own threads, through a bounded queue of copies of the spans, so a slow
+ * sink doesn't hold back the others until its queue is full. What happens then depends on the sink's
+ * {@link LagPolicy}.
+ * <p>
+ * A sink that fails, throwing either a checked or an unchecked exception, doesn't affect the others: it just stops
+ * receiving data, and its failure is reported in its {@link Result}. Sinks are flushed once the whole body has been
+ * delivered to them, but not closed.
+ * <p>
+ * Example, inside a {@link MultipartProcessorListener}:
+ * <pre>{@code
+ * List<PartTee.Result> results = part.tee()
+ *         .addSink(fileOutput)
+ *         .addSink(digestOutput)
+ *         .addSink(scanner.getOutputStream(), 64, PartTee.LagPolicy.SPILL)
+ *         .transfer();
+ * }</pre>
+ * A tee can only transfer once, and is not thread-safe.
+ */
+public final class PartTee {
+
+    /**
+     * What to do when the queue of an asynchronous sink is full.
+     */
+    public enum LagPolicy {
+        /** Wait for the sink, which holds back the reading of the body and so all the other sinks. */
+        BLOCK,
+        /** Append to a temporary file what doesn't fit in the queue; the sink receives it later, in order. */
+        SPILL,
+        /** Fail the sink, which stops receiving data. The other sinks are not affected. */
+        FAIL
+    }
+
+    private static final int SPILL_READ_SIZE = 64 * 1024;
+
+    private final MultipartInputStream body;
+    private final List<Sink> sinks = new ArrayList<>();
+    private Executor executor;
+    private Path spillDirectory;
+    private MemoryBudget budget;
+    private boolean transferred;
+
+    PartTee(MultipartInputStream body) {
+        this.body = body;
+    }
+
+    /**
+     * Adds a sink written on the caller's thread.
+     * @param out the sink.
+     * @return this object.
+     */
+    public PartTee addSink(OutputStream out) {
+        sinks.add(new Sink(out));
+        return this;
+    }
+
+    /**
+     * Adds a sink written on its own thread.
+     * @param out the sink.
+     * @param queueDepth maximum number of spans queued for the sink. Each span is at most the size of the parser's
+     * buffer.
+     * @param lagPolicy what to do when the queue is full.
+     * @return this object.
+     */
+    public PartTee addSink(OutputStream out, int queueDepth, LagPolicy lagPolicy) {
+        if (queueDepth <= 0) {
+            throw new IllegalArgumentException("Queue depth must be positive");
+        }
+        sinks.add(new AsyncSink(out, queueDepth, lagPolicy));
+        return this;
+    }
+
+    /**
+     * Sets the {@link java.util.concurrent.Executor} asynchronous sinks are written on. It should not queue the tasks
+     * (e.g. an executor creating a thread per task, or a pool with threads to spare). By default, a new daemon thread
+     * is started for each asynchronous sink.
+     * @param executor the executor, or {@code null} to start daemon threads.
+     * @return this object.
+     */
+    public PartTee setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets the directory where the temporary files of sinks with {@link LagPolicy#SPILL} are created. Files are only
+     * created when needed, and deleted once the sink is done.
+     * @param spillDirectory the directory, or {@code null} to use the default temporary-file directory.
+     * @return this object.
+     */
+    public PartTee setSpillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
+    /**
+     * Sets the budget the copies queued for asynchronous sinks, and the buffers used to read back their temporary
+     * files, are reserved from. A sink whose copy can't be reserved is treated as if its queue were full, so its
+     * {@link LagPolicy} applies. A sink that can't do with less memory, because it blocks with nothing queued or has to
+     * read back its temporary file, waits for the budget, up to its maximum wait, and fails if it is still exhausted.
+     * @param budget the {@link MemoryBudget}, or {@code null} to not account for the copies.
+     * @return this object.
+     */
+    public PartTee setMemoryBudget(MemoryBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    /**
+     * Reads the rest of the part's body, delivering it to all the sinks, and waits for the asynchronous ones to finish.
+     * @return the result of each sink, in the order they were added.
+     * @throws IOException If reading the part's body throws this exception, in which case the asynchronous sinks are
+     * cancelled without waiting for them, or if the thread is interrupted while waiting for them.
+     */
+    public List<Result> transfer() throws IOException {
+        if (transferred) {
+            throw new IOException("Part body already transferred");
+        }
+        transferred = true;
+        for (Sink sink : sinks) {
+            sink.start();
+        }
+        try {
+            body.transferTo(new FanOut());
+        } catch (IOException | RuntimeException e) {
+            for (Sink sink : sinks) {
+                sink.cancel(e);
+            }
+            throw e;
+        }
+        List<Result> results = new ArrayList<>(sinks.size());
+        for (Sink sink : sinks) {
+            sink.finish();
+        }
+        for (Sink sink : sinks) {
+            results.add(sink.awaitResult());
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * Outcome of delivering the body to one sink.
+     */
+    public static final class Result {
+
+        private final long bytesWritten;
+        private final long bytesSpilled;
+        private final IOException error;
+
+        private Result(long bytesWritten, long bytesSpilled, IOException error) {
+            this.bytesWritten = bytesWritten;
+            this.bytesSpilled = bytesSpilled;
+            this.error = error;
+        }
+
+        /**
+         * Returns whether the whole body was written to the sink and flushed.
+         * @return {@code true} if the sink didn't fail.
+         */
+        public boolean isSuccessful() {
+            return error == null;
+        }
+
+        /**
+         * Returns the number of bytes written to the sink.
+         * @return the number of bytes written, the whole body if successful.
+         */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /**
+         * Returns the number of bytes that went through a temporary file because the sink was lagging behind.
+         * @return the number of bytes spilled, always 0 unless the sink uses {@link LagPolicy#SPILL}.
+         */
+        public long getBytesSpilled() {
+            return bytesSpilled;
+        }
+
+        /**
+         * Returns why the sink failed: the exception it threw, or the reason it was failed by its lag policy.
+         * @return the error, or {@code null} if successful.
+         */
+        public IOException getError() {
+            return error;
+        }
+
+    }
+
+    /**
+     * Returns the given exception thrown by a sink as an {@link IOException}, unwrapping it if it was unchecked.
+     */
+    private static IOException toIOException(Exception e) {
+        if (e instanceof IOException) {
+            return (IOException)e;
+        }
+        if (e instanceof UncheckedIOException) {
+            return ((UncheckedIOException)e).getCause();
+        }
+        return new IOException("Sink failed", e);
+    }
+
+    private final class FanOut extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            for (Sink sink : sinks) {
+                sink.write(bytes, offset, length);
+            }
+        }
+
+    }
+
+    private static class Sink {
+
+        final OutputStream out;
+        long bytesWritten;
+        IOException error;
+
+        Sink(OutputStream out) {
+            this.out = out;
+        }
+
+        void start() {
+            // inline sinks have nothing to start
+        }
+
+        void write(byte[] bytes, int offset, int length) throws IOException {
+            if (error == null) {
+                try {
+                    out.write(bytes, offset, length);
+                    bytesWritten += length;
+                } catch (IOException | RuntimeException e) {
+                    error = toIOException(e);
+                }
+            }
+        }
+
+        void finish() {
+            if (error == null) {
+                try {
+                    out.flush();
+                } catch (IOException | RuntimeException e) {
+                    error = toIOException(e);
+                }
+            }
+        }
+
+        void cancel(Exception cause) {
+            // inline sinks are never behind the body
+        }
+
+        Result awaitResult() throws IOException {
+            return new Result(bytesWritten, 0, error);
+        }
+
+    }
+
+    /**
+     * A sink written on its own thread. The queue holds copies of the spans; with {@link LagPolicy#SPILL}, once it is
+     * full, spans are appended to a temporary file instead, and keep going there until the writer has caught up with
+     * the file, so the sink receives everything in order: first the queue, then the file.
+     */
+    private final class AsyncSink extends Sink {
+
+        private final Deque<byte[]> queue = new ArrayDeque<>();
+        private final int queueDepth;
+        private final LagPolicy lagPolicy;
+
+        // guarded by this
+        private FileChannel spill;
+        private long spillWritten;
+        private long spillRead;
+        private long bytesSpilled;
+        private boolean finished;
+        private boolean cancelled;
+        private boolean done;
+        private IOException lagError;
+
+        AsyncSink(OutputStream out, int queueDepth, LagPolicy lagPolicy) {
+            super(out);
+            this.queueDepth = queueDepth;
+            this.lagPolicy = lagPolicy;
+        }
+
+        @Override
+        void start() {
+            if (executor != null) {
+                executor.execute(this::writeQueued);
+            } else {
+                Thread thread = new Thread(this::writeQueued, "part-tee-sink");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        @Override
+        synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            while (!done && lagError == null && !enqueue(bytes, offset, length)) {
+                if (lagPolicy == LagPolicy.SPILL) {
+                    spill(bytes, offset, length);
+                    notifyAll();
+                    return;
+                }
+                if (lagPolicy == LagPolicy.FAIL) {
+                    lagError = queue.size() == queueDepth
+                            ? new IOException("Sink lagged behind by more than " + queueDepth + " spans")
+                            : new IOException("Sink lagged behind by more than its memory budget allows");
+                    notifyAll();
+                    return;
+                }
+                if (queue.isEmpty()) {
+                    // the budget is held by others, so there is no copy of this sink to wait for
+                    try {
+                        budget.reserve(length);
+                    } catch (IOException e) {
+                        lagError = e;
+                        notifyAll();
+                        return;
+                    }
+                    queue.add(Arrays.copyOfRange(bytes, offset, offset + length));
+                    notifyAll();
+                    return;
+                }
+                waitForWriter();
+            }
+        }
+
+        @Override
+        synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        @Override
+        synchronized void cancel(Exception cause) {
+            cancelled = true;
+            if (lagError == null) {
+                lagError = new IOException("Part body not fully read", cause);
+            }
+            clearQueue();
+            notifyAll();
+        }
+
+        @Override
+        synchronized Result awaitResult() throws IOException {
+            while (!done) {
+                waitForWriter();
+            }
+            return new Result(bytesWritten, bytesSpilled, error != null ? error : lagError);
+        }
+
+        /**
+         * Adds a copy of the given span to the queue, if it has room and the copy can be reserved from the budget.
+         */
+        private boolean enqueue(byte[] bytes, int offset, int length) {
+            if (queue.size() == queueDepth || spillWritten != spillRead) {
+                return false;
+            }
+            if (budget != null && !budget.tryReserve(length)) {
+                return false;
+            }
+            queue.add(Arrays.copyOfRange(bytes, offset, offset + length));
+            notifyAll();
+            return true;
+        }
+
+        private void clearQueue() {
+            if (budget != null) {
+                for (byte[] chunk : queue) {
+                    budget.release(chunk.length);
+                }
+            }
+            queue.clear();
+        }
+
+        private void waitForWriter() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a sink");
+            }
+        }
+
+        private void spill(byte[] bytes, int offset, int length) throws IOException {
+            try {
+                if (spill == null) {
+                    Path file = spillDirectory != null
+                            ? Files.createTempFile(spillDirectory, "part-tee", ".spill")
+                            : Files.createTempFile("part-tee", ".spill");
+                    spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.DELETE_ON_CLOSE);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining()) {
+                    spillWritten += spill.write(buffer, spillWritten);
+                }
+                bytesSpilled += length;
+            } catch (IOException e) {
+                lagError = e;
+            }
+        }
+
+        private void writeQueued() {
+            ByteBuffer spillBuffer = null;
+            try {
+                while (true) {
+                    byte[] chunk;
+                    long spillPosition = -1;
+                    int spillLength = 0;
+                    synchronized (this) {
+                        while (queue.isEmpty() && spillRead == spillWritten && !finished && !stopped()) {
+                            wait();
+                        }
+                        if (stopped() || (queue.isEmpty() && spillRead == spillWritten)) {
+                            break;
+                        }
+                        chunk = queue.poll();
+                        if (chunk == null) {
+                            spillPosition = spillRead;
+                            spillLength = (int)Math.min(SPILL_READ_SIZE, spillWritten - spillRead);
+                        }
+                        notifyAll();
+                    }
+                    if (chunk == null) {
+                        // only this thread reads the file, and only from the part already written
+                        if (spillBuffer == null) {
+                            if (budget != null) {
+                                budget.reserve(SPILL_READ_SIZE);
+                            }
+                            spillBuffer = ByteBuffer.allocate(SPILL_READ_SIZE);
+                        }
+                        spillBuffer.clear().limit(spillLength);
+                        while (spillBuffer.hasRemaining()) {
+                            if (spill.read(spillBuffer, spillPosition + spillBuffer.position()) == -1) {
+                                throw new IOException("Unexpected end of spill file");
+                            }
+                        }
+                        out.write(spillBuffer.array(), 0, spillLength);
+                        written(spillLength, true);
+                    } else {
+                        try {
+                            out.write(chunk);
+                        } finally {
+                            if (budget != null) {
+                                budget.release(chunk.length);
+                            }
+                        }
+                        written(chunk.length, false);
+                    }
+                }
+                if (!stopped()) {
+                    out.flush();
+                }
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    error = toIOException(e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                synchronized (this) {
+                    error = new InterruptedIOException("Interrupted waiting for the part body");
+                }
+            } finally {
+                if (spillBuffer != null && budget != null) {
+                    budget.release(SPILL_READ_SIZE);
+                }
+                synchronized (this) {
+                    clearQueue();
+                    closeSpill();
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        private synchronized void written(int length, boolean fromSpill) {
+            bytesWritten += length;
+            if (fromSpill) {
+                spillRead += length;
+                if (spillRead == spillWritten) {
+                    // caught up with the file: start over from its beginning
+                    spillRead = 0;
+                    spillWritten = 0;
+                }
+            }
+        }
+
+        private boolean stopped() {
+            return cancelled || error != null || lagError != null;
+        }
+
+        private void closeSpill() {
+            if (spill != null) {
+                try {
+                    spill.close();
+                } catch (IOException e) {
+                    // the file is only temporary
+                }
+                spill = null;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+/**
+ * Listener used to report the progress of the parsing of a multipart request body. See
+ * {@link MultipartOptions#setProgressListener(ProgressListener, long, java.time.Duration)}.
+ */
+@FunctionalInterface
+public interface ProgressListener {
+
+    /**
+     * Called periodically while a multipart http request body is being parsed, and once more when it is finished.
+     * @param totalBytes Total number of bytes read so far from the body.
+     * @param partOrdinal Ordinal of the current part, starting at 1; 0 if no part has been found yet.
+     * @param partName Name of the current part, as given by {@link Part#getName()}; may be {@code null}.
+     * @param partBytes Number of bytes of the current part's body consumed so far.
+     */
+    void onProgress(long totalBytes, int partOrdinal, String partName, long partBytes);
+
+}
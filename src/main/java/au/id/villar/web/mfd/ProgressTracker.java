@@ -0,0 +1,96 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+/**
+ * Keeps the counters reported to a {@link ProgressListener}. Counters are updated once per buffer fill and once per
+ * span of body bytes, and the listener is only considered (and throttled) on buffer fills.
+ */
+final class ProgressTracker {
+
+    private final ProgressListener listener;
+    private final long everyBytes;
+    private final long everyNanos;
+
+    private long totalBytes;
+    private int partOrdinal;
+    private String partName;
+    private long partBytes;
+
+    private long lastReportedBytes;
+    private long lastReportedTime;
+
+    private ProgressTracker(ProgressListener listener, long everyBytes, long everyNanos) {
+        this.listener = listener;
+        this.everyBytes = everyBytes;
+        this.everyNanos = everyNanos;
+        this.lastReportedTime = System.nanoTime();
+    }
+
+    /**
+     * Creates a tracker for the given options.
+     * @return the tracker, or {@code null} if no progress listener is set.
+     */
+    static ProgressTracker of(MultipartOptions options) {
+        if (options.getProgressListener() == null) {
+            return null;
+        }
+        long everyBytes = options.getProgressBytes() > 0 ? options.getProgressBytes() : Long.MAX_VALUE;
+        long everyNanos = options.getProgressInterval() != null ? options.getProgressInterval().toNanos()
+                : Long.MAX_VALUE;
+        return new ProgressTracker(options.getProgressListener(), everyBytes, everyNanos);
+    }
+
+    void startPart(String name) {
+        partOrdinal++;
+        partName = name;
+        partBytes = 0;
+    }
+
+    void addPartBytes(int bytes) {
+        partBytes += bytes;
+    }
+
+    /**
+     * Called after every read from upstream.
+     * @param bytes the number of bytes read, or -1 on EOF.
+     */
+    void onRead(int bytes) {
+        if (bytes > 0) {
+            totalBytes += bytes;
+        }
+        if (totalBytes - lastReportedBytes >= everyBytes) {
+            report(System.nanoTime());
+        } else if (everyNanos != Long.MAX_VALUE) {
+            long now = System.nanoTime();
+            if (now - lastReportedTime >= everyNanos) {
+                report(now);
+            }
+        }
+    }
+
+    void finish() {
+        report(System.nanoTime());
+    }
+
+    private void report(long now) {
+        lastReportedBytes = totalBytes;
+        lastReportedTime = now;
+        listener.onProgress(totalBytes, partOrdinal, partName, partBytes);
+    }
+
+}
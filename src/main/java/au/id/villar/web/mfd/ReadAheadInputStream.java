@@ -0,0 +1,192 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * InputStream which reads ahead from another one on a companion thread, so reading from upstream (e.g. a slow socket,
+ * or a stream decrypting or decompressing) overlaps with parsing. The companion fills a ring of {@code depth} buffers
+ * while the reader consumes the ones already filled; when all of them are filled, the companion waits.
+ * <p>
+ * Upstream exceptions and EOF are delivered to the reader in order, once the bytes read before them have been consumed.
+ * Closing this stream cancels the companion, which ends as soon as its current read from upstream returns; upstream
+ * itself is not closed. The companion is never interrupted, as that would close an upstream backed by an
+ * {@link java.nio.channels.InterruptibleChannel}.
+ */
+final class ReadAheadInputStream extends InputStream {
+
+    private static final Filled END = new Filled(null, 0, null);
+    private static final byte[] CANCELLED = new byte[0];
+
+    private final InputStream upstream;
+    private final BlockingQueue<byte[]> free;
+    private final BlockingQueue<Filled> filled;
+
+    private volatile boolean cancelled;
+
+    private Filled current;
+    private int currentPosition;
+    private boolean eof;
+
+    /**
+     * Creates the stream and starts reading ahead, on the given executor or, if {@code null}, on a new daemon thread.
+     */
+    ReadAheadInputStream(InputStream upstream, int bufferSize, int depth, Executor executor) {
+        this.upstream = upstream;
+        this.free = new ArrayBlockingQueue<>(depth);
+        this.filled = new ArrayBlockingQueue<>(depth + 1);
+        for (int x = 0; x < depth; x++) {
+            free.add(new byte[bufferSize]);
+        }
+        if (executor != null) {
+            executor.execute(this::readAhead);
+        } else {
+            Thread thread = new Thread(this::readAhead, "multipart-read-ahead");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!next()) {
+            return -1;
+        }
+        int read = current.bytes[currentPosition++] & 0xFF;
+        recycleIfConsumed();
+        return read;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!next()) {
+            return -1;
+        }
+        int count = Math.min(length, current.length - currentPosition);
+        System.arraycopy(current.bytes, currentPosition, bytes, offset, count);
+        currentPosition += count;
+        recycleIfConsumed();
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current != null ? current.length - currentPosition : 0;
+    }
+
+    /**
+     * Cancels the companion and discards whatever it has read ahead.
+     */
+    @Override
+    public void close() {
+        cancelled = true;
+        // wakes the companion if it waits for a free buffer; if this can't be added, all buffers are free and it won't
+        free.offer(CANCELLED);
+        filled.clear();
+        current = null;
+        eof = true;
+    }
+
+    private boolean next() throws IOException {
+        if (current != null) {
+            return true;
+        }
+        if (eof) {
+            return false;
+        }
+        Filled next;
+        try {
+            next = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for upstream");
+        }
+        if (next == END) {
+            eof = true;
+            return false;
+        }
+        if (next.error != null) {
+            eof = true;
+            if (next.error instanceof IOException) {
+                throw (IOException)next.error;
+            }
+            if (next.error instanceof RuntimeException) {
+                throw (RuntimeException)next.error;
+            }
+            throw (Error)next.error;
+        }
+        current = next;
+        currentPosition = 0;
+        return true;
+    }
+
+    private void recycleIfConsumed() {
+        if (currentPosition == current.length) {
+            free.add(current.bytes);
+            current = null;
+        }
+    }
+
+    private void readAhead() {
+        try {
+            while (!cancelled) {
+                byte[] bytes = free.take();
+                if (bytes == CANCELLED) {
+                    return;
+                }
+                int read = upstream.read(bytes, 0, bytes.length);
+                if (read == -1) {
+                    filled.put(END);
+                    return;
+                }
+                filled.put(new Filled(bytes, read, null));
+            }
+        } catch (InterruptedException e) {
+            // the executor is shutting down
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException | Error e) {
+            if (!cancelled) {
+                // there is always room for it: at most depth buffers are in the queue
+                filled.add(new Filled(null, 0, e));
+            }
+        }
+    }
+
+    private static final class Filled {
+
+        private final byte[] bytes;
+        private final int length;
+        private final Throwable error;
+
+        private Filled(byte[] bytes, int length, Throwable error) {
+            this.bytes = bytes;
+            this.length = length;
+            this.error = error;
+        }
+
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Thrown when a multipart body is received slower than allowed by the rate guards set in {@link MultipartOptions}.
+ */
+public class SlowUploadException extends InterruptedIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The rate guard that was violated.
+     */
+    public enum Reason {
+        /** The average throughput over the sliding window fell below the minimum. */
+        MINIMUM_THROUGHPUT,
+        /** The headers of a part took longer than allowed. */
+        HEADER_TIMEOUT,
+        /** The whole body took longer than allowed. */
+        DEADLINE
+    }
+
+    private final Reason reason;
+
+    SlowUploadException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    /**
+     * Returns the rate guard that was violated.
+     * @return the reason of this exception.
+     */
+    public Reason getReason() {
+        return reason;
+    }
+
+}
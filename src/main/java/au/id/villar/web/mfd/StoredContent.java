@@ -0,0 +1,70 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.nio.file.Path;
+
+/**
+ * Handle to a part body stored by a {@link ContentAddressedStore}.
+ */
+public final class StoredContent {
+
+    private final String hash;
+    private final long size;
+    private final Path path;
+    private final boolean duplicate;
+
+    StoredContent(String hash, long size, Path path, boolean duplicate) {
+        this.hash = hash;
+        this.size = size;
+        this.path = path;
+        this.duplicate = duplicate;
+    }
+
+    /**
+     * Returns the hash of the content, as lowercase hexadecimal.
+     * @return the hash of the content.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the size of the content.
+     * @return the size of the content, in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the path where the content is stored.
+     * @return the path of the stored file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Tells whether the content was already stored before, in which case the uploaded copy was discarded.
+     * @return {@code true} if the content was already stored.
+     */
+    public boolean isDuplicate() {
+        return duplicate;
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.time.Duration;
+
+/**
+ * Enforces the rate guards from {@link MultipartOptions}. It is checked by {@link InputBuffer} once per buffer fill, so
+ * its cost doesn't depend on the number of bytes read. The minimum throughput is averaged over a ring of time slots
+ * covering the sliding window (plus the slot currently being filled), and only evaluated when the current slot changes.
+ */
+final class ThroughputGuard {
+
+    private static final int SLOTS = 8;
+
+    private final long start;
+    private final long deadline;
+    private final long headerTimeout;
+    private final long window;
+    private final long slotLength;
+    private final long minBytesPerWindow;
+    private final long[] slotBytes = new long[SLOTS + 1];
+
+    private long currentSlot;
+    private long headersStart = -1;
+
+    private ThroughputGuard(MultipartOptions options) {
+        this.start = System.nanoTime();
+        this.deadline = options.getDeadline() != null ? options.getDeadline().toNanos() : -1;
+        this.headerTimeout = options.getHeaderTimeout() != null ? options.getHeaderTimeout().toNanos() : -1;
+        Duration throughputWindow = options.getThroughputWindow();
+        if (throughputWindow != null) {
+            this.window = throughputWindow.toNanos();
+            this.slotLength = Math.max(1, window / SLOTS);
+            this.minBytesPerWindow = (long)(options.getMinBytesPerSecond() * (window / 1_000_000_000.0));
+        } else {
+            this.window = -1;
+            this.slotLength = 1;
+            this.minBytesPerWindow = 0;
+        }
+    }
+
+    /**
+     * Creates a guard for the given options.
+     * @return the guard, or {@code null} if no rate guard is set.
+     */
+    static ThroughputGuard of(MultipartOptions options) {
+        if (options.getDeadline() == null && options.getHeaderTimeout() == null
+                && options.getThroughputWindow() == null) {
+            return null;
+        }
+        return new ThroughputGuard(options);
+    }
+
+    void startHeaders() throws SlowUploadException {
+        headersStart = System.nanoTime();
+        check(headersStart);
+    }
+
+    void endHeaders() {
+        headersStart = -1;
+    }
+
+    /**
+     * Called after every read from upstream.
+     * @param bytes the number of bytes read, or -1 on EOF.
+     */
+    void onRead(int bytes) throws SlowUploadException {
+        long now = System.nanoTime();
+        if (window != -1) {
+            long slot = (now - start) / slotLength;
+            boolean slotChanged = slot != currentSlot;
+            if (slotChanged) {
+                advanceTo(slot);
+            }
+            if (bytes > 0) {
+                slotBytes[(int)(slot % slotBytes.length)] += bytes;
+            }
+            if (slotChanged && slot >= SLOTS && sumSlots() < minBytesPerWindow) {
+                throw new SlowUploadException(SlowUploadException.Reason.MINIMUM_THROUGHPUT,
+                        "Multipart body received below the minimum throughput");
+            }
+        }
+        check(now);
+    }
+
+    private void check(long now) throws SlowUploadException {
+        if (deadline != -1 && now - start > deadline) {
+            throw new SlowUploadException(SlowUploadException.Reason.DEADLINE,
+                    "Multipart body not processed within the deadline");
+        }
+        if (headerTimeout != -1 && headersStart != -1 && now - headersStart > headerTimeout) {
+            throw new SlowUploadException(SlowUploadException.Reason.HEADER_TIMEOUT,
+                    "Part headers not received within the timeout");
+        }
+    }
+
+    private void advanceTo(long slot) {
+        long toClear = Math.min(slotBytes.length, slot - currentSlot);
+        for (long x = 1; x <= toClear; x++) {
+            slotBytes[(int)((currentSlot + x) % slotBytes.length)] = 0;
+        }
+        currentSlot = slot;
+    }
+
+    private long sumSlots() {
+        long sum = 0;
+        for (long bytes : slotBytes) {
+            sum += bytes;
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncFileSinkTest {
+
+    private static final String BOUNDARY = "---ZZZZ";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void shouldWriteFileParts() throws Exception {
+        String body1 = "0123456789\r\n--".repeat(3000);
+        String body2 = "ABCDEFGHIJ".repeat(10);
+        String content = file("a.txt", body1) + file("b.txt", body2) + file("c.txt", "") + "--" + BOUNDARY + "--";
+        AsyncFileSink sink = new AsyncFileSink(1000, 3);
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+
+        MultipartProcessor.process(BOUNDARY, new ByteArrayInputStream(content.getBytes()),
+                part -> results.add(sink.write(part, tempDir.resolve(part.getFilename()))));
+
+        assertEquals(body1.length(), (long)results.get(0).get());
+        assertEquals(body2.length(), (long)results.get(1).get());
+        assertEquals(0, (long)results.get(2).get());
+        assertEquals(body1, Files.readString(tempDir.resolve("a.txt")));
+        assertEquals(body2, Files.readString(tempDir.resolve("b.txt")));
+        assertEquals("", Files.readString(tempDir.resolve("c.txt")));
+    }
+
+    @Test
+    void shouldWorkWithSingleBuffer() throws Exception {
+        String body = "0123456789".repeat(1000);
+        String content = file("a.txt", body) + "--" + BOUNDARY + "--";
+        AsyncFileSink sink = new AsyncFileSink(64, 1);
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+
+        MultipartProcessor.process(BOUNDARY, new ByteArrayInputStream(content.getBytes()),
+                part -> results.add(sink.write(part, tempDir.resolve(part.getFilename()))));
+
+        assertEquals(body.length(), (long)results.get(0).get());
+        assertEquals(body, Files.readString(tempDir.resolve("a.txt")));
+    }
+
+    @Test
+    void shouldUseFewerBuffersWhenBudgetIsExhausted() throws Exception {
+        String body = "0123456789".repeat(1000);
+        String content = file("a.txt", body) + "--" + BOUNDARY + "--";
+        MemoryBudget budget = new MemoryBudget(InputBuffer.DEFAULT_SIZE + 100);
+        AsyncFileSink sink = new AsyncFileSink(64, 8, budget);
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+
+        MultipartProcessor.process(BOUNDARY, new ByteArrayInputStream(content.getBytes()),
+                part -> results.add(sink.write(part, tempDir.resolve(part.getFilename()))),
+                new MultipartOptions().setMemoryBudget(budget));
+
+        assertEquals(body.length(), (long)results.get(0).get());
+        assertEquals(body, Files.readString(tempDir.resolve("a.txt")));
+        assertTrue(budget.getReserved() <= 100);
+    }
+
+    @Test
+    void shouldGiveBuffersBackToBudgetWhenClosed() throws Exception {
+        String body = "0123456789".repeat(1000);
+        String content = file("a.txt", body) + "--" + BOUNDARY + "--";
+        MemoryBudget budget = new MemoryBudget(4 * 1024);
+
+        for (int x = 0; x < 5; x++) {
+            List<CompletableFuture<Long>> results = new ArrayList<>();
+            try (AsyncFileSink sink = new AsyncFileSink(1024, 3, budget)) {
+                MultipartProcessor.process(BOUNDARY, new ByteArrayInputStream(content.getBytes()),
+                        part -> results.add(sink.write(part, tempDir.resolve(part.getFilename()))));
+            }
+            assertEquals(body.length(), (long)results.get(0).get());
+            assertEquals(0, budget.getReserved());
+        }
+
+        AsyncFileSink closed = new AsyncFileSink(1024, 3, budget);
+        closed.close();
+        assertThrows(IOException.class, () -> MultipartProcessor.process(BOUNDARY,
+                new ByteArrayInputStream(content.getBytes()),
+                part -> closed.write(part, tempDir.resolve(part.getFilename()))));
+    }
+
+    @Test
+    void shouldFailWritersWaitingForBufferWhenClosed() throws Exception {
+        AsyncFileSink sink = new AsyncFileSink(64, 1);
+        PipedOutputStream slowUpload = new PipedOutputStream();
+        PipedInputStream slowInput = new PipedInputStream(slowUpload);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // the first upload holds the only buffer while waiting for the rest of its body
+            slowUpload.write(("--" + BOUNDARY + "\r\nContent-disposition:form-data; name=\"file\"; filename=\"a.txt\""
+                    + "\r\n\r\nDATA").getBytes());
+            Future<?> holding = executor.submit(() -> {
+                MultipartProcessor.process(BOUNDARY, slowInput,
+                        part -> sink.write(part, tempDir.resolve(part.getFilename())));
+                return null;
+            });
+            Thread.sleep(100);
+            String content = file("b.txt", "MORE DATA") + "--" + BOUNDARY + "--";
+            Future<?> waiting = executor.submit(() -> {
+                MultipartProcessor.process(BOUNDARY, new ByteArrayInputStream(content.getBytes()),
+                        part -> sink.write(part, tempDir.resolve(part.getFilename())));
+                return null;
+            });
+            Thread.sleep(100);
+            assertFalse(waiting.isDone());
+
+            sink.close();
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> waiting.get(5, TimeUnit.SECONDS));
+            assertEquals("Sink closed", e.getCause().getMessage());
+            slowUpload.close();
+            assertThrows(ExecutionException.class, () -> holding.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void shouldReportFailurePerPart() throws IOException {
+        String content = file("a.txt", "DATA") + file("b.txt", "MORE DATA") + "--" + BOUNDARY + "--";
+        AsyncFileSink sink = new AsyncFileSink(64, 2);
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+
+        MultipartProcessor.process(BOUNDARY, new ByteArrayInputStream(content.getBytes()), part -> {
+            Path target = "a.txt".equals(part.getFilename()) ? tempDir.resolve("missing").resolve("a.txt")
+                    : tempDir.resolve(part.getFilename());
+            results.add(sink.write(part, target));
+        });
+
+        assertThrows(ExecutionException.class, () -> results.get(0).get());
+        assertDoesNotThrow(() -> results.get(1).get());
+        assertEquals("MORE DATA", Files.readString(tempDir.resolve("b.txt")));
+    }
+
+    private static String file(String filename, String content) {
+        return "--" + BOUNDARY + "\r\nContent-disposition:form-data; name=\"file\"; filename=\"" + filename
+                + "\"\r\n\r\n" + content + "\r\n";
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentAddressedStoreTest {
+
+    private static final String BOUNDARY = "---ZZZZ";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void shouldStoreEachContentOnce() throws IOException {
+        ContentAddressedStore store = new ContentAddressedStore(tempDir);
+
+        List<StoredContent> stored = storeAll(store, "CONTENT A", "CONTENT B", "CONTENT A");
+
+        assertFalse(stored.get(0).isDuplicate());
+        assertFalse(stored.get(1).isDuplicate());
+        assertTrue(stored.get(2).isDuplicate());
+        assertEquals(stored.get(0).getHash(), stored.get(2).getHash());
+        assertEquals(stored.get(0).getPath(), stored.get(2).getPath());
+        assertNotEquals(stored.get(0).getHash(), stored.get(1).getHash());
+        assertEquals(9, stored.get(0).getSize());
+        assertEquals("CONTENT A", Files.readString(stored.get(0).getPath()));
+        assertEquals(2, countFiles());
+    }
+
+    @Test
+    void shouldUseHashAsPath() throws IOException {
+        ContentAddressedStore store = new ContentAddressedStore(tempDir);
+
+        StoredContent stored = storeAll(store, "abc").get(0);
+
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", stored.getHash());
+        assertEquals(tempDir.resolve("ba").resolve("78").resolve(stored.getHash()), stored.getPath());
+        assertTrue(store.contains(stored.getHash()));
+    }
+
+    @Test
+    void shouldDetectDuplicatesEvictedFromIndex() throws IOException {
+        ContentAddressedStore store = new ContentAddressedStore(tempDir, "SHA-256", 1);
+
+        List<StoredContent> stored = storeAll(store, "CONTENT A", "CONTENT B", "CONTENT A");
+
+        assertTrue(stored.get(2).isDuplicate());
+        assertEquals(2, countFiles());
+    }
+
+    @Test
+    void shouldStoreConcurrentIdenticalUploadsOnce() throws Exception {
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 20; round++) {
+                String content = "CONTENT " + round;
+                CyclicBarrier barrier = new CyclicBarrier(threads);
+                List<Future<StoredContent>> futures = new ArrayList<>();
+                for (int x = 0; x < threads; x++) {
+                    // a store per thread, as separate processes sharing the directory have no common index
+                    ContentAddressedStore store = new ContentAddressedStore(tempDir);
+                    futures.add(executor.submit(() -> {
+                        barrier.await();
+                        return storeAll(store, content).get(0);
+                    }));
+                }
+                int originals = 0;
+                for (Future<StoredContent> future : futures) {
+                    if (!future.get().isDuplicate()) originals++;
+                }
+                assertEquals(1, originals, "round " + round);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(20, countFiles());
+    }
+
+    private List<StoredContent> storeAll(ContentAddressedStore store, String... contents) throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (String content : contents) {
+            body.append("--").append(BOUNDARY).append("\r\nContent-Disposition: form-data; name=\"file\"; ")
+                    .append("filename=\"file.txt\"\r\n\r\n").append(content).append("\r\n");
+        }
+        body.append("--").append(BOUNDARY).append("--");
+        List<StoredContent> stored = new ArrayList<>();
+        MultipartProcessor.process(BOUNDARY, new ByteArrayInputStream(body.toString().getBytes()),
+                part -> stored.add(store.store(part)));
+        return stored;
+    }
+
+    private long countFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(tempDir)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Measures the parsing throughput of bodies designed to be hard for a naive delimiter search: near misses of the
+ * delimiter, self-overlapping boundaries and long runs of CR. Random content can run several times faster than them,
+ * as the search skips straight to the next CR, which is rare there, while hostile bodies can't be skipped that way.
+ * What the linear-time search guarantees is that all the hostile bodies run at about the same flat speed, instead of
+ * degrading with the length of the boundary or with how the near misses overlap.
+ * <p>
+ * Run with {@code java -cp <test-classes>:<classes> au.id.villar.web.mfd.DelimiterBenchmark [megabytes] [rounds]}.
+ */
+public class DelimiterBenchmark {
+
+    private static final String BOUNDARY = "----------------------------4048463084070250670139386546";
+    private static final String OVERLAPPING_BOUNDARY = "ab\r\n--ab\r\n--ab\r\n--ab\r\n--ab\r\n--ab\r\n--ab";
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int size = megabytes * 1024 * 1024;
+
+        byte[] random = new byte[size];
+        new Random(42).nextBytes(random);
+        String delimiter = "\r\n--" + BOUNDARY;
+        String overlapping = "\r\n--" + OVERLAPPING_BOUNDARY;
+
+        byte[] none = new byte[0];
+
+        run("random", BOUNDARY, none, random, rounds);
+        run("near misses", BOUNDARY, none, fill(delimiter.substring(0, delimiter.length() - 1), size), rounds);
+        run("self-overlapping", OVERLAPPING_BOUNDARY, none,
+                fill(overlapping.substring(0, overlapping.length() - 1), size), rounds);
+        run("carriage returns", BOUNDARY, none, fill("\r", size), rounds);
+        run("preamble near misses", BOUNDARY, fill("--" + BOUNDARY.substring(1), size), none, rounds);
+    }
+
+    private static void run(String name, String boundary, byte[] preamble, byte[] body, int rounds)
+            throws IOException {
+        byte[] content = build(boundary, preamble, body);
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            MultipartProcessor.process(boundary, new ByteArrayInputStream(content),
+                    part -> part.getBodyStream().transferTo(OutputStream.nullOutputStream()));
+            best = Math.min(best, (System.nanoTime() - start) / 1e9);
+        }
+        System.out.printf("%-22s %8.1f MB/s%n", name, content.length / best / (1024 * 1024));
+    }
+
+    private static byte[] build(String boundary, byte[] preamble, byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + preamble.length + 256);
+        out.write(preamble);
+        out.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"data.bin\""
+                + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.write(body);
+        out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        return out.toByteArray();
+    }
+
+    private static byte[] fill(String pattern, int size) {
+        byte[] unit = pattern.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] bytes = new byte[size];
+        for (int x = 0; x < size; x++) {
+            bytes[x] = unit[x % unit.length];
+        }
+        return bytes;
+    }
+
+}
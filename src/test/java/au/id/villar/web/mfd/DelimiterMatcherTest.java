@@ -0,0 +1,87 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DelimiterMatcherTest {
+
+    @Test
+    void shouldFindDelimiterAfterPartialMatch() {
+        DelimiterMatcher matcher = new DelimiterMatcher("aab".getBytes());
+
+        assertEquals(1, matcher.indexOf("aaab".getBytes(), 0, 4));
+    }
+
+    @Test
+    void shouldFindOverlappingOccurrences() {
+        DelimiterMatcher matcher = new DelimiterMatcher("abab".getBytes());
+
+        assertArrayEquals(new int[] {0, 2, 7}, matcher.indexesOf("ababab-abab".getBytes(), 0, 11));
+    }
+
+    @Test
+    void shouldKeepStateBetweenScans() {
+        DelimiterMatcher matcher = new DelimiterMatcher("\r\n--ab\r\n--ab".getBytes());
+        byte[] bytes = "x\r\n--ab\r\n--ab\r\n--ab".getBytes();
+
+        int result = matcher.scan(bytes, 0, 9, 0);
+        assertTrue(result < 0);
+        int state = -result - 1;
+        assertEquals(8, state);
+
+        assertEquals(13, matcher.scan(bytes, 9, bytes.length, state));
+    }
+
+    @Test
+    void shouldReturnSameResultsAsBruteForce() {
+        Random random = new Random(42);
+        for (int round = 0; round < 2000; round++) {
+            byte[] delimiter = randomBytes(random, 1 + random.nextInt(6));
+            byte[] buffer = randomBytes(random, random.nextInt(64));
+            DelimiterMatcher matcher = new DelimiterMatcher(delimiter);
+
+            assertArrayEquals(bruteForce(delimiter, buffer), matcher.indexesOf(buffer, 0, buffer.length),
+                    () -> Arrays.toString(delimiter) + " in " + Arrays.toString(buffer));
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        for (int x = 0; x < length; x++) {
+            bytes[x] = (byte)('a' + random.nextInt(2));
+        }
+        return bytes;
+    }
+
+    private static int[] bruteForce(byte[] delimiter, byte[] buffer) {
+        int[] found = new int[buffer.length];
+        int count = 0;
+        for (int x = 0; x + delimiter.length <= buffer.length; x++) {
+            if (Arrays.equals(buffer, x, x + delimiter.length, delimiter, 0, delimiter.length)) {
+                found[count++] = x;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FormFieldsTest {
+
+    private static final String BOUNDARY = "---ZZZZ";
+
+    @Test
+    void shouldCollectFieldsAndRouteFiles() throws IOException {
+        String content = field("field1", "VALUE 1") + field("field2", "VALUE 2") + field("field1", "VALUE 3")
+                + "--" + BOUNDARY + "\r\nContent-disposition:form-data; name=\"file\"; filename=\"a.txt\"\r\n\r\n"
+                + "FILE\r\n--" + BOUNDARY + "--";
+        List<String> files = new ArrayList<>();
+
+        FormFields fields = MultipartProcessor.collectFields(BOUNDARY,
+                new ByteArrayInputStream(content.getBytes()), 1000, part -> files.add(part.readBodyText()));
+
+        assertEquals(3, fields.size());
+        assertEquals(Set.of("field1", "field2"), fields.getNames());
+        assertEquals("VALUE 1", fields.getValue("field1"));
+        assertEquals(List.of("VALUE 1", "VALUE 3"), fields.getValues("field1"));
+        assertEquals(List.of("VALUE 2"), fields.getValues("field2"));
+        assertEquals("field2", fields.getName(1));
+        assertEquals("VALUE 2", fields.getValue(1));
+        assertNull(fields.getValue("missing"));
+        assertEquals(List.of("FILE"), files);
+    }
+
+    @Test
+    void shouldGrowArena() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int x = 0; x < 500; x++) {
+            content.append(field("field" + x, "value number " + x));
+        }
+        content.append("--").append(BOUNDARY).append("--");
+
+        FormFields fields = MultipartProcessor.collectFields(BOUNDARY,
+                new ByteArrayInputStream(content.toString().getBytes()), 100_000, null);
+
+        assertEquals(500, fields.size());
+        for (int x = 0; x < 500; x++) {
+            assertEquals("value number " + x, fields.getValue("field" + x));
+        }
+    }
+
+    @Test
+    void shouldFailWhenExceedingMaxBytes() {
+        String content = field("field1", "VALUE 1") + field("field2", "VALUE 2") + "--" + BOUNDARY + "--";
+
+        assertThrows(IOException.class, () -> MultipartProcessor.collectFields(BOUNDARY,
+                new ByteArrayInputStream(content.getBytes()), 10, null));
+    }
+
+    @Test
+    void shouldReserveArenaFromMemoryBudget() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int x = 0; x < 500; x++) {
+            content.append(field("field" + x, "value number " + x));
+        }
+        content.append("--").append(BOUNDARY).append("--");
+        MemoryBudget small = new MemoryBudget(12 * 1024);
+
+        assertThrows(MemoryBudgetExceededException.class, () -> MultipartProcessor.collectFields(BOUNDARY,
+                new ByteArrayInputStream(content.toString().getBytes()), 100_000, null,
+                new MultipartOptions().setMemoryBudget(small)));
+        assertEquals(0, small.getReserved());
+
+        MemoryBudget budget = new MemoryBudget(64 * 1024);
+        FormFields fields = MultipartProcessor.collectFields(BOUNDARY,
+                new ByteArrayInputStream(content.toString().getBytes()), 100_000, null,
+                new MultipartOptions().setMemoryBudget(budget));
+
+        assertEquals(500, fields.size());
+        assertTrue(budget.getReserved() >= fields.getTotalBytes());
+        fields.close();
+        assertEquals(0, budget.getReserved());
+        assertEquals("value number 499", fields.getValue("field499"));
+    }
+
+    @Test
+    void shouldAcceptFieldsUpToMaxBytes() throws IOException {
+        String content = field("field1", "VALUE 1") + field("field2", "VALUE 2") + "--" + BOUNDARY + "--";
+
+        FormFields fields = MultipartProcessor.collectFields(BOUNDARY,
+                new ByteArrayInputStream(content.getBytes()), 14, null);
+
+        assertEquals(14, fields.getTotalBytes());
+    }
+
+    @Test
+    void shouldDecodeWithCharsetField() throws IOException {
+        byte[] content = (field("field1", "v\u00e4lue") + field("_charset_", "ISO-8859-1") + "--" + BOUNDARY + "--")
+                .getBytes(StandardCharsets.ISO_8859_1);
+
+        FormFields fields = MultipartProcessor.collectFields(BOUNDARY, new ByteArrayInputStream(content), 1000, null);
+
+        assertEquals("v\u00e4lue", fields.getValue("field1"));
+    }
+
+    @Test
+    void shouldExposeRawValues() throws IOException {
+        String content = field("field1", "VALUE 1") + "--" + BOUNDARY + "--";
+
+        FormFields fields = MultipartProcessor.collectFields(BOUNDARY,
+                new ByteArrayInputStream(content.getBytes()), 1000, null);
+        ByteBuffer raw = fields.getRawValue(0);
+
+        assertTrue(raw.isReadOnly());
+        assertEquals(7, raw.remaining());
+        assertEquals('V', raw.get());
+    }
+
+    private static String field(String name, String value) {
+        return "--" + BOUNDARY + "\r\nContent-disposition:form-data; name=\"" + name + "\"\r\n\r\n" + value + "\r\n";
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeaderParametersTest {
+
+    @Test
+    void shouldParseAllParametersInOnePass() {
+        HeaderParameters parameters = HeaderParameters.parse("form-data; name=\"field1\";filename=file.txt");
+
+        assertEquals("form-data", parameters.getValue());
+        assertEquals(2, parameters.size());
+        assertEquals("name", parameters.getKey(0));
+        assertEquals("filename", parameters.getKey(1));
+        assertEquals("field1", parameters.get("name"));
+        assertEquals("file.txt", parameters.get("FileName"));
+        assertNull(parameters.get("file"));
+    }
+
+    @Test
+    void shouldUnescapeQuotedValues() {
+        HeaderParameters parameters = HeaderParameters.parse("form-data; name=\"a \\\"quoted\\\" name; really\"");
+
+        assertEquals("a \"quoted\" name; really", parameters.get("name"));
+    }
+
+    @Test
+    void shouldKeepBackslashesOfWindowsPaths() {
+        HeaderParameters parameters = HeaderParameters.parse(
+                "form-data; name=\"file\"; filename=\"C:\\Users\\me\\f.txt\"; other=\"a\\\\b\"");
+
+        assertEquals("C:\\Users\\me\\f.txt", parameters.get("filename"));
+        assertEquals("a\\b", parameters.get("other"));
+    }
+
+    @Test
+    void shouldDecodePercentEncodedUtf8() {
+        HeaderParameters parameters = HeaderParameters.parse("form-data; name=\"caf%C3%A9\"; filename=\"100%.txt\"");
+
+        assertEquals("caf\u00e9", parameters.get("name"));
+        assertEquals("100%.txt", parameters.get("filename"));
+    }
+
+    @Test
+    void shouldPreferExtendedValue() {
+        HeaderParameters parameters = HeaderParameters.parse(
+                "form-data; name=\"file\"; filename=\"EURO rates.txt\"; filename*=UTF-8''%E2%82%AC%20rates.txt");
+
+        assertEquals("\u20ac rates.txt", parameters.get("filename"));
+    }
+
+    @Test
+    void shouldDecodeExtendedValueWithItsCharset() {
+        HeaderParameters parameters = HeaderParameters.parse("attachment; filename*=iso-8859-1'en'%A3%20rates");
+
+        assertEquals("\u00a3 rates", parameters.get("filename"));
+    }
+
+    @Test
+    void shouldFallBackIfExtendedValueIsInvalid() {
+        HeaderParameters parameters = HeaderParameters.parse(
+                "form-data; filename=\"plain.txt\"; filename*=UNKNOWN-CHARSET''abc");
+
+        assertEquals("plain.txt", parameters.get("filename"));
+    }
+
+    @Test
+    void shouldIgnoreParametersWithoutValue() {
+        HeaderParameters parameters = HeaderParameters.parse("multipart/form-data; flag; boundary=---ABC");
+
+        assertEquals(1, parameters.size());
+        assertEquals("---ABC", parameters.get("boundary"));
+    }
+
+}
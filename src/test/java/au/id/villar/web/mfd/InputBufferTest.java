@@ -0,0 +1,140 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InputBufferTest {
+
+    @Test
+    void shouldDecodeChunkedBody() throws IOException {
+        InputBuffer buffer = chunked("5\r\nHello\r\n7;name=value\r\n, world\r\n0\r\n\r\n", 64);
+
+        assertEquals("Hello, world", readAll(buffer));
+    }
+
+    @Test
+    void shouldSkipTrailerAndDiscardWhatFollows() throws IOException {
+        InputBuffer buffer = chunked("3\r\nabc\r\n0\r\nChecksum: 1234\r\n\r\nNEXT REQUEST", 64);
+
+        assertEquals("abc", readAll(buffer));
+        assertEquals(-1, buffer.read());
+    }
+
+    @Test
+    void shouldDecodeChunksLargerThanBuffer() throws IOException {
+        String payload = "0123456789".repeat(100);
+        InputBuffer buffer = chunked(Integer.toHexString(payload.length()) + "\r\n" + payload + "\r\n0\r\n\r\n", 16);
+
+        assertEquals(payload, readAll(buffer));
+    }
+
+    @Test
+    void shouldDecodeAnyChunkingAndReadSize() throws IOException {
+        Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            byte[] payload = new byte[random.nextInt(3000)];
+            random.nextBytes(payload);
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            int offset = 0;
+            while (offset < payload.length) {
+                int length = Math.min(payload.length - offset, 1 + random.nextInt(random.nextBoolean() ? 8 : 700));
+                encoded.writeBytes((Integer.toHexString(length) + (random.nextBoolean() ? ";x=y" : "") + "\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                encoded.write(payload, offset, length);
+                encoded.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+                offset += length;
+            }
+            encoded.writeBytes("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            InputBuffer buffer = new InputBuffer(new TrickleStream(encoded.toByteArray(), random),
+                    16 + random.nextInt(200), null, null, true);
+
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+            buffer.transferTo(decoded);
+            assertArrayEquals(payload, decoded.toByteArray());
+        }
+    }
+
+    @Test
+    void shouldFailOnInvalidChunkSize() {
+        InputBuffer buffer = chunked("5X\r\nHello\r\n0\r\n\r\n", 64);
+
+        assertThrows(IOException.class, () -> readAll(buffer));
+    }
+
+    @Test
+    void shouldFailOnMissingCrlfAfterChunk() {
+        InputBuffer buffer = chunked("5\r\nHello!\r\n0\r\n\r\n", 64);
+
+        assertThrows(IOException.class, () -> readAll(buffer));
+    }
+
+    @Test
+    void shouldFailOnTruncatedBody() {
+        InputBuffer buffer = chunked("5\r\nHel", 64);
+
+        assertThrows(IOException.class, () -> readAll(buffer));
+    }
+
+    private static InputBuffer chunked(String content, int size) {
+        return new InputBuffer(new ByteArrayInputStream(content.getBytes(StandardCharsets.US_ASCII)), size, null, null,
+                true);
+    }
+
+    private static String readAll(InputStream input) throws IOException {
+        return new String(input.readAllBytes(), StandardCharsets.US_ASCII);
+    }
+
+    private static class TrickleStream extends InputStream {
+
+        private final byte[] content;
+        private final Random random;
+        private int position;
+
+        TrickleStream(byte[] content, Random random) {
+            this.content = content;
+            this.random = random;
+        }
+
+        @Override
+        public int read() {
+            return position < content.length ? content[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (position == content.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(length, content.length - position), 1 + random.nextInt(300));
+            System.arraycopy(content, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+    }
+
+}
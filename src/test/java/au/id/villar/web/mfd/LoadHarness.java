@@ -0,0 +1,427 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Load and soak harness: drives {@link MultipartProcessor#process(String, InputStream, MultipartProcessorListener)}
+ * from many threads at once over a mix of pre-generated bodies, some of them throttled, and records per-request
+ * latency percentiles, throughput, allocation per request and time spent in GC. Results are printed and saved as JSON,
+ * so runs of different versions can be compared.
+ * <p>
+ * Run it with {@code mvn -Pload-test verify}, passing options as properties (e.g. {@code -Dload.concurrency=64
+ * -Dload.duration=300}), or directly with {@code java -cp <test-classes>:<classes> au.id.villar.web.mfd.LoadHarness
+ * [options]}, where options are:
+ * <ul>
+ *     <li>{@code --concurrency=N}: number of threads sending requests, 16 by default.</li>
+ *     <li>{@code --duration=S}: seconds measured, 30 by default.</li>
+ *     <li>{@code --warmup=S}: seconds run before measuring, 10 by default.</li>
+ *     <li>{@code --mix=kind:weight,...}: body mix, {@code small:70,large:20,slow:10} by default. Kinds are
+ *     {@code small} (a form of short fields), {@code large} (a 1 MiB file and a few fields) and {@code slow} (a 64 KiB
+ *     file received at {@code --slow-rate} bytes per second).</li>
+ *     <li>{@code --slow-rate=B}: bytes per second of slow bodies, 1 MiB by default.</li>
+ *     <li>{@code --output=FILE}: file the JSON results are written to, {@code load-results.json} by default.</li>
+ * </ul>
+ * Requests run on platform threads: the project targets Java 17, without virtual threads.
+ */
+public class LoadHarness {
+
+    private static final String BOUNDARY = "----------------------------LoadHarness7b3c2f";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        Duration duration = Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration", "30")));
+        Duration warmup = Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup", "10")));
+        String mix = options.getOrDefault("mix", "small:70,large:20,slow:10");
+        long slowRate = Long.parseLong(options.getOrDefault("slow-rate", String.valueOf(1024 * 1024)));
+        Path output = Path.of(options.getOrDefault("output", "load-results.json"));
+
+        List<BodyKind> kinds = parseMix(mix, slowRate);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            ((com.sun.management.ThreadMXBean)threads).setThreadAllocatedMemoryEnabled(true);
+        }
+
+        System.out.printf("Warming up for %ds with %d threads...%n", warmup.toSeconds(), concurrency);
+        run(kinds, concurrency, warmup);
+
+        System.out.printf("Measuring for %ds...%n", duration.toSeconds());
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTime();
+        long start = System.nanoTime();
+        List<Worker> workers = run(kinds, concurrency, duration);
+        long elapsed = System.nanoTime() - start;
+        long gcCount = gcCount() - gcCountBefore;
+        long gcTime = gcTime() - gcTimeBefore;
+
+        String json = toJson(options, concurrency, mix, kinds, workers, elapsed, gcCount, gcTime);
+        Files.writeString(output, json);
+        System.out.println(json);
+        System.out.println("Results saved to " + output.toAbsolutePath());
+    }
+
+    private static List<Worker> run(List<BodyKind> kinds, int concurrency, Duration duration)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + duration.toNanos();
+        CountDownLatch done = new CountDownLatch(concurrency);
+        List<Worker> workers = new ArrayList<>();
+        for (int x = 0; x < concurrency; x++) {
+            Worker worker = new Worker(kinds, deadline, new Random(x), done);
+            workers.add(worker);
+            Thread thread = new Thread(worker, "load-" + x);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        for (Worker worker : workers) {
+            if (worker.failure != null) {
+                throw new IllegalStateException("Request failed", worker.failure);
+            }
+        }
+        return workers;
+    }
+
+    private static String toJson(Map<String, String> options, int concurrency, String mix, List<BodyKind> kinds,
+            List<Worker> workers, long elapsedNanos, long gcCount, long gcTimeMillis) {
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"timestamp\": \"").append(Instant.now()).append("\",\n");
+        json.append("  \"javaVersion\": ").append(quote(System.getProperty("java.version"))).append(",\n");
+        json.append("  \"processors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        json.append("  \"concurrency\": ").append(concurrency).append(",\n");
+        json.append("  \"mix\": ").append(quote(mix)).append(",\n");
+        json.append("  \"options\": {");
+        String separator = "";
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            json.append(separator).append(quote(option.getKey())).append(": ").append(quote(option.getValue()));
+            separator = ", ";
+        }
+        json.append("},\n");
+        json.append("  \"durationSeconds\": ").append(format(seconds)).append(",\n");
+        json.append("  \"gc\": {\"collections\": ").append(gcCount).append(", \"timeMillis\": ").append(gcTimeMillis)
+                .append(", \"timeFraction\": ").append(format(gcTimeMillis / 1000.0 / seconds)).append("},\n");
+
+        long totalRequests = 0;
+        long totalBytes = 0;
+        json.append("  \"kinds\": {");
+        for (int k = 0; k < kinds.size(); k++) {
+            BodyKind kind = kinds.get(k);
+            Samples samples = new Samples();
+            long allocated = 0;
+            for (Worker worker : workers) {
+                samples.addAll(worker.latencies[k]);
+                allocated += worker.allocated[k];
+            }
+            long[] sorted = samples.sorted();
+            long bytes = (long)sorted.length * kind.body.length;
+            totalRequests += sorted.length;
+            totalBytes += bytes;
+            json.append(k > 0 ? ",\n" : "\n");
+            json.append("    ").append(quote(kind.name)).append(": {");
+            json.append("\"requests\": ").append(sorted.length);
+            json.append(", \"bodyBytes\": ").append(kind.body.length);
+            json.append(", \"p50Millis\": ").append(format(percentile(sorted, 0.50) / 1e6));
+            json.append(", \"p99Millis\": ").append(format(percentile(sorted, 0.99) / 1e6));
+            json.append(", \"p999Millis\": ").append(format(percentile(sorted, 0.999) / 1e6));
+            json.append(", \"maxMillis\": ").append(format(percentile(sorted, 1) / 1e6));
+            json.append(", \"megabytesPerSecond\": ").append(format(bytes / seconds / (1024 * 1024)));
+            json.append(", \"allocatedBytesPerRequest\": ").append(sorted.length > 0 ? allocated / sorted.length : 0);
+            json.append("}");
+        }
+        json.append("\n  },\n");
+        json.append("  \"requestsPerSecond\": ").append(format(totalRequests / seconds)).append(",\n");
+        json.append("  \"megabytesPerSecond\": ").append(format(totalBytes / seconds / (1024 * 1024))).append("\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int)Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int x = 0; x < value.length(); x++) {
+            char ch = value.charAt(x);
+            if (ch == '"' || ch == '\\') {
+                quoted.append('\\').append(ch);
+            } else if (ch < 0x20) {
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int)ch));
+            } else {
+                quoted.append(ch);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') == -1) {
+                throw new IllegalArgumentException("Expected --option=value: " + arg);
+            }
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (!value.isEmpty()) {
+                options.put(arg.substring(2, arg.indexOf('=')), value);
+            }
+        }
+        return options;
+    }
+
+    private static List<BodyKind> parseMix(String mix, long slowRate) throws IOException {
+        List<BodyKind> kinds = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] nameAndWeight = entry.trim().split(":");
+            String name = nameAndWeight[0];
+            int weight = nameAndWeight.length > 1 ? Integer.parseInt(nameAndWeight[1]) : 1;
+            switch (name) {
+                case "small" -> kinds.add(new BodyKind(name, weight, smallBody(), 0));
+                case "large" -> kinds.add(new BodyKind(name, weight, fileBody(1024 * 1024), 0));
+                case "slow" -> kinds.add(new BodyKind(name, weight, fileBody(64 * 1024), slowRate));
+                default -> throw new IllegalArgumentException("Unknown body kind: " + name);
+            }
+        }
+        return kinds;
+    }
+
+    private static byte[] smallBody() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int x = 0; x < 10; x++) {
+            writeField(body, "field" + x, "value of field number " + x + " ".repeat(x * 10));
+        }
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return body.toByteArray();
+    }
+
+    private static byte[] fileBody(int size) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(size + 1024);
+        writeField(body, "description", "A file");
+        writeField(body, "tags", "one,two,three");
+        byte[] file = new byte[size];
+        new Random(size).nextBytes(file);
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(file);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return body.toByteArray();
+    }
+
+    private static void writeField(OutputStream body, String name, String value) throws IOException {
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + value
+                + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static final class BodyKind {
+
+        private final String name;
+        private final int weight;
+        private final byte[] body;
+        private final long bytesPerSecond;
+
+        private BodyKind(String name, int weight, byte[] body, long bytesPerSecond) {
+            this.name = name;
+            this.weight = weight;
+            this.body = body;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        private InputStream open() {
+            InputStream input = new ByteArrayInputStream(body);
+            return bytesPerSecond > 0 ? new ThrottledInputStream(input, bytesPerSecond) : input;
+        }
+
+    }
+
+    private static final class Worker implements Runnable {
+
+        private final List<BodyKind> kinds;
+        private final long deadline;
+        private final Random random;
+        private final CountDownLatch done;
+        private final int totalWeight;
+        private final Samples[] latencies;
+        private final long[] allocated;
+        private volatile Throwable failure;
+
+        private Worker(List<BodyKind> kinds, long deadline, Random random, CountDownLatch done) {
+            this.kinds = kinds;
+            this.deadline = deadline;
+            this.random = random;
+            this.done = done;
+            this.totalWeight = kinds.stream().mapToInt(kind -> kind.weight).sum();
+            this.latencies = new Samples[kinds.size()];
+            this.allocated = new long[kinds.size()];
+            for (int x = 0; x < latencies.length; x++) {
+                latencies[x] = new Samples();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (System.nanoTime() < deadline) {
+                    int kind = pickKind();
+                    InputStream input = kinds.get(kind).open();
+                    long allocatedBefore = allocatedBytes();
+                    long start = System.nanoTime();
+                    MultipartProcessor.process(BOUNDARY, input,
+                            part -> part.getBodyStream().transferTo(OutputStream.nullOutputStream()));
+                    latencies[kind].add(System.nanoTime() - start);
+                    allocated[kind] += allocatedBytes() - allocatedBefore;
+                }
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private int pickKind() {
+            int value = random.nextInt(totalWeight);
+            for (int x = 0; x < kinds.size(); x++) {
+                value -= kinds.get(x).weight;
+                if (value < 0) {
+                    return x;
+                }
+            }
+            return kinds.size() - 1;
+        }
+
+        private static long allocatedBytes() {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean)threads).getCurrentThreadAllocatedBytes();
+            }
+            return 0;
+        }
+
+    }
+
+    private static final class Samples {
+
+        private long[] values = new long[1024];
+        private int size;
+
+        private void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private void addAll(Samples other) {
+            for (int x = 0; x < other.size; x++) {
+                add(other.values[x]);
+            }
+        }
+
+        private long[] sorted() {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+    }
+
+    private static final class ThrottledInputStream extends InputStream {
+
+        private final InputStream input;
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long delivered;
+
+        private ThrottledInputStream(InputStream input, long bytesPerSecond) {
+            this.input = input;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] bytes = new byte[1];
+            return read(bytes, 0, 1) == -1 ? -1 : bytes[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            // like a network link: deliver up to a segment at a time, no sooner than the rate allows
+            int read = input.read(bytes, offset, Math.min(length, 1460));
+            if (read > 0) {
+                delivered += read;
+                long due = start + delivered * 1_000_000_000L / bytesPerSecond;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1_000_000, (int)(wait % 1_000_000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException(e);
+                    }
+                }
+            }
+            return read;
+        }
+
+    }
+
+}
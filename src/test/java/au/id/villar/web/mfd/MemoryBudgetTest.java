@@ -0,0 +1,92 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryBudgetTest {
+
+    @Test
+    void shouldReserveUpToMaximum() {
+        MemoryBudget budget = new MemoryBudget(100);
+
+        assertTrue(budget.tryReserve(60));
+        assertTrue(budget.tryReserve(40));
+        assertFalse(budget.tryReserve(1));
+        assertEquals(100, budget.getReserved());
+        assertEquals(0, budget.getAvailable());
+
+        budget.release(50);
+
+        assertEquals(50, budget.getReserved());
+        assertTrue(budget.tryReserve(50));
+    }
+
+    @Test
+    void shouldFailRightAwayWithoutMaximumWait() {
+        MemoryBudget budget = new MemoryBudget(100);
+        budget.tryReserve(100);
+
+        MemoryBudgetExceededException e = assertThrows(MemoryBudgetExceededException.class, () -> budget.reserve(10));
+
+        assertEquals(10, e.getRequestedBytes());
+        assertEquals(100, budget.getReserved());
+    }
+
+    @Test
+    void shouldFailAfterMaximumWait() {
+        MemoryBudget budget = new MemoryBudget(100, Duration.ofMillis(50));
+        budget.tryReserve(100);
+        long start = System.nanoTime();
+
+        assertThrows(MemoryBudgetExceededException.class, () -> budget.reserve(10));
+
+        assertTrue(System.nanoTime() - start >= Duration.ofMillis(50).toNanos());
+    }
+
+    @Test
+    void shouldWaitForRelease() throws IOException {
+        MemoryBudget budget = new MemoryBudget(100, Duration.ofSeconds(10));
+        budget.tryReserve(100);
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            budget.release(30);
+        });
+        budget.reserve(30);
+
+        assertEquals(100, budget.getReserved());
+    }
+
+    @Test
+    void shouldNotWaitForMoreThanTheWholeBudget() {
+        MemoryBudget budget = new MemoryBudget(100, Duration.ofSeconds(10));
+
+        assertThrows(MemoryBudgetExceededException.class, () -> budget.reserve(101));
+    }
+
+}
@@ -22,6 +22,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -132,4 +134,36 @@ class MultipartInputStreamTest {
             }
         });
     }
-}
\ No newline at end of file
+
+    @Test
+    void shouldReadInBulkFromBuffer() throws IOException {
+        InputBuffer buffer = new InputBuffer(new ByteArrayInputStream(
+                "Testing content\r\nLine Two\r\n--DELIMITzzz\r\n--DELIMITERXXX".getBytes()), 32);
+        InputStream testingStream = createTestCase(buffer);
+        byte[] bytes = new byte[100];
+        int total = 0;
+        int read;
+        while ((read = testingStream.read(bytes, total, bytes.length - total)) != -1) {
+            total += read;
+        }
+
+        assertEquals("Testing content\r\nLine Two\r\n--DELIMITzzz", new String(bytes, 0, total));
+        assertEquals('X', buffer.read());
+    }
+
+    @Test
+    void shouldReadIntoDirectByteBuffer() throws IOException {
+        InputBuffer buffer = new InputBuffer(new ByteArrayInputStream(
+                "Testing content\r\nLine Two\r\n--DELIMITER".getBytes()), 16);
+        ReadableByteChannel channel = (ReadableByteChannel)createTestCase(buffer);
+        ByteBuffer destination = ByteBuffer.allocateDirect(64);
+        while (channel.read(destination) != -1) {
+            // keep reading
+        }
+        destination.flip();
+        byte[] bytes = new byte[destination.remaining()];
+        destination.get(bytes);
+
+        assertEquals("Testing content\r\nLine Two", new String(bytes));
+    }
+}
@@ -21,6 +21,9 @@ import org.junit.jupiter.api.Test;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -163,6 +166,323 @@ class MultipartProcessorTest {
         assertEquals("ANOTHER LINE\n", onlySecond.get(0).content);
     }
 
+    @Test
+    void shouldParseBodiesLargerThanBuffer() throws IOException {
+        String boundary = "---ZZZZ";
+        String body = "0123456789\r\n--".repeat(2000);
+        String content = "--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\n\r\n"
+                + body + "\r\n--" + boundary + "\r\nContent-disposition:form-data; name=\"field2\""
+                + "\r\n\r\n" + body + "\r\n--" + boundary + "--";
+
+        List<ResultPart> resultParts = runTestCase(boundary, content);
+
+        assertEquals(2, resultParts.size());
+        assertEquals(body, resultParts.get(0).content);
+        assertEquals(body, resultParts.get(1).content);
+    }
+
+    @Test
+    void shouldFindInitialDelimiterAfterPartialMatch() throws IOException {
+        String boundary = "aab";
+        String content = "---aab\r\nContent-disposition:form-data; name=\"field1\"\r\n\r\nVALUE\r\n--aab--";
+
+        List<ResultPart> resultParts = runTestCase(boundary, content);
+
+        assertEquals(1, resultParts.size());
+        assertEquals("VALUE", resultParts.get(0).content);
+    }
+
+    @Test
+    void shouldParseBodiesWithNearMissesOfSelfOverlappingDelimiter() throws IOException {
+        String boundary = "ab\r\n--ab";
+        String body = "\r\n--ab\r\n--a\r\n--ab\r\n--aX\r\n--ab\r\n--a";
+        String content = "--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\n\r\n"
+                + body + "\r\n--" + boundary + "\r\nContent-disposition:form-data; name=\"field2\""
+                + "\r\n\r\n" + body.repeat(500) + "\r\n--" + boundary + "--";
+        List<String> values = new ArrayList<>();
+
+        MultipartProcessor.process(boundary, new SlowStream(content, 0),
+                part -> values.add(part.readBodyText()));
+
+        assertEquals(List.of(body, body.repeat(500)), values);
+    }
+
+    @Test
+    void shouldAbortWhenDeadlineExpires() {
+        String boundary = "---ZZZZ";
+        String content = "--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\n\r\n"
+                + "VALUE\r\n--" + boundary + "--";
+        MultipartOptions options = new MultipartOptions().setDeadline(Duration.ofMillis(50));
+
+        SlowUploadException e = assertThrows(SlowUploadException.class, () ->
+                MultipartProcessor.process(boundary, new SlowStream(content, 10), part -> {}, options));
+        assertEquals(SlowUploadException.Reason.DEADLINE, e.getReason());
+    }
+
+    @Test
+    void shouldAbortWhenHeadersTakeTooLong() {
+        String boundary = "---ZZZZ";
+        String content = "--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\n\r\n"
+                + "VALUE\r\n--" + boundary + "--";
+        MultipartOptions options = new MultipartOptions().setHeaderTimeout(Duration.ofMillis(50));
+
+        SlowUploadException e = assertThrows(SlowUploadException.class, () ->
+                MultipartProcessor.process(boundary, new SlowStream(content, 10), part -> {}, options));
+        assertEquals(SlowUploadException.Reason.HEADER_TIMEOUT, e.getReason());
+    }
+
+    @Test
+    void shouldAbortWhenThroughputIsTooLow() {
+        String boundary = "---ZZZZ";
+        String content = "--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\n\r\n"
+                + "VALUE".repeat(20) + "\r\n--" + boundary + "--";
+        MultipartOptions options = new MultipartOptions().setMinimumThroughput(1000, Duration.ofMillis(80));
+
+        SlowUploadException e = assertThrows(SlowUploadException.class, () ->
+                MultipartProcessor.process(boundary, new SlowStream(content, 5), part -> {}, options));
+        assertEquals(SlowUploadException.Reason.MINIMUM_THROUGHPUT, e.getReason());
+    }
+
+    @Test
+    void shouldNotAbortFastUploads() throws IOException {
+        String boundary = "---ZZZZ";
+        String content = "--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\n\r\n"
+                + "VALUE\r\n--" + boundary + "--";
+        MultipartOptions options = new MultipartOptions()
+                .setMinimumThroughput(1000, Duration.ofSeconds(1))
+                .setHeaderTimeout(Duration.ofSeconds(5))
+                .setDeadline(Duration.ofSeconds(10));
+        List<String> values = new ArrayList<>();
+
+        MultipartProcessor.process(boundary, new ByteArrayInputStream(content.getBytes()),
+                part -> values.add(part.readBodyText()), options);
+
+        assertEquals(List.of("VALUE"), values);
+    }
+
+    @Test
+    void shouldReportProgressThrottledByBytes() throws IOException {
+        String boundary = "---ZZZZ";
+        String body = "0123456789".repeat(5000);
+        String content = "--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\n\r\n"
+                + body + "\r\n--" + boundary + "--";
+        List<long[]> reports = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        ProgressListener listener = (totalBytes, ordinal, name, partBytes) -> {
+            reports.add(new long[] {totalBytes, ordinal, partBytes});
+            names.add(name);
+        };
+        MultipartOptions options = new MultipartOptions().setProgressListener(listener, 20000, null);
+
+        MultipartProcessor.process(boundary, new ByteArrayInputStream(content.getBytes()),
+                part -> part.getBodyStream().transferTo(new ByteArrayOutputStream()), options);
+
+        assertTrue(reports.size() >= 3 && reports.size() <= 4);
+        long[] last = reports.get(reports.size() - 1);
+        assertEquals(content.length(), last[0]);
+        assertEquals(1, last[1]);
+        assertEquals(body.length(), last[2]);
+        assertEquals("field1", names.get(names.size() - 1));
+        for (int x = 1; x < reports.size() - 1; x++) {
+            assertTrue(reports.get(x)[0] - reports.get(x - 1)[0] >= 20000);
+        }
+    }
+
+    @Test
+    void shouldApplyCharsetFieldToFollowingParts() throws IOException {
+        String boundary = "---ZZZZ";
+        byte[] content = ("--" + boundary + "\r\nContent-disposition:form-data; name=\"_charset_\"\r\n\r\n"
+                + "iso-8859-1\r\n--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\n\r\n"
+                + "v\u00e4lue\r\n--" + boundary + "--").getBytes(StandardCharsets.ISO_8859_1);
+        List<String> values = new ArrayList<>();
+
+        MultipartProcessor.process(boundary, new ByteArrayInputStream(content), part -> {
+            if ("field1".equals(part.getName())) {
+                values.add(part.readBodyText());
+            }
+        });
+
+        assertEquals(List.of("v\u00e4lue"), values);
+    }
+
+    @Test
+    void shouldReadTrustedContentLength() throws IOException {
+        String boundary = "---ZZZZ";
+        String body = "0123456789\r\n--".repeat(2000);
+        String content = "--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\nContent-Length: "
+                + body.length() + "\r\n\r\n" + body + "\r\n--" + boundary + "\r\n"
+                + "Content-disposition:form-data; name=\"field2\"\r\n\r\nVALUE\r\n--" + boundary + "--";
+        List<String> values = new ArrayList<>();
+
+        MultipartProcessor.process(boundary, new ByteArrayInputStream(content.getBytes()),
+                part -> values.add(new String(part.getBodyStream().readAllBytes())),
+                new MultipartOptions().setTrustPartContentLength(true));
+
+        assertEquals(List.of(body, "VALUE"), values);
+    }
+
+    @Test
+    void shouldScanIfTrustedContentLengthIsTooShort() throws IOException {
+        String boundary = "---ZZZZ";
+        String content = "--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\nContent-Length: 3"
+                + "\r\n\r\nVALUE\r\n--" + boundary + "--";
+        List<String> values = new ArrayList<>();
+
+        MultipartProcessor.process(boundary, new ByteArrayInputStream(content.getBytes()),
+                part -> values.add(part.readBodyText()), new MultipartOptions().setTrustPartContentLength(true));
+
+        assertEquals(List.of("VALUE"), values);
+    }
+
+    @Test
+    void shouldReserveReadBufferFromMemoryBudget() throws IOException {
+        String boundary = "---ZZZZ";
+        String content = "--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\n\r\nVALUE\r\n--"
+                + boundary + "--";
+        MemoryBudget budget = new MemoryBudget(InputBuffer.DEFAULT_SIZE);
+        List<Long> reserved = new ArrayList<>();
+
+        MultipartProcessor.process(boundary, new ByteArrayInputStream(content.getBytes()),
+                part -> reserved.add(budget.getReserved()), new MultipartOptions().setMemoryBudget(budget));
+
+        assertEquals(List.of((long)InputBuffer.DEFAULT_SIZE), reserved);
+        assertEquals(0, budget.getReserved());
+        budget.tryReserve(1);
+        MultipartOptions options = new MultipartOptions().setMemoryBudget(budget);
+        assertThrows(MemoryBudgetExceededException.class, () -> MultipartProcessor.process(boundary,
+                new ByteArrayInputStream(content.getBytes()), part -> {}, options));
+    }
+
+    @Test
+    void shouldParseChunkedBody() throws IOException {
+        String boundary = "---ZZZZ";
+        String body = "0123456789".repeat(2000);
+        String content = "--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\n\r\nVALUE\r\n--"
+                + boundary + "\r\nContent-disposition:form-data; name=\"field2\"\r\nContent-Length: " + body.length()
+                + "\r\n\r\n" + body + "\r\n--" + boundary + "--";
+        StringBuilder chunked = new StringBuilder();
+        for (int x = 0; x < content.length(); x += 1000) {
+            String chunk = content.substring(x, Math.min(content.length(), x + 1000));
+            chunked.append(Integer.toHexString(chunk.length())).append("\r\n").append(chunk).append("\r\n");
+        }
+        chunked.append("0\r\n\r\n");
+        List<String> values = new ArrayList<>();
+
+        MultipartProcessor.process(boundary, new ByteArrayInputStream(chunked.toString().getBytes()), part -> {
+            byte[] bytes = new byte[64 * 1024];
+            int total = 0;
+            int read;
+            while ((read = part.getBodyStream().read(bytes, total, bytes.length - total)) != -1) {
+                total += read;
+            }
+            values.add(new String(bytes, 0, total));
+        }, new MultipartOptions().setChunkedTransferEncoding(true).setTrustPartContentLength(true));
+
+        assertEquals(List.of("VALUE", body), values);
+    }
+
+    @Test
+    void shouldReadAheadOnCompanionThread() throws IOException {
+        String boundary = "---ZZZZ";
+        String body = "0123456789\r\n--".repeat(2000);
+        String content = "--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\n\r\n"
+                + body + "\r\n--" + boundary + "\r\nContent-disposition:form-data; name=\"field2\""
+                + "\r\n\r\nVALUE 2\r\n--" + boundary + "--";
+        MemoryBudget budget = new MemoryBudget(InputBuffer.DEFAULT_SIZE * 4);
+        List<String> values = new ArrayList<>();
+
+        MultipartProcessor.process(boundary, new ByteArrayInputStream(content.getBytes()),
+                part -> values.add(part.readBodyText()),
+                new MultipartOptions().setReadAhead(3, null).setMemoryBudget(budget));
+
+        assertEquals(List.of(body, "VALUE 2"), values);
+        assertEquals(0, budget.getReserved());
+    }
+
+    @Test
+    void shouldStopReadingAheadWhenListenerThrows() throws IOException, InterruptedException {
+        String boundary = "---ZZZZ";
+        String content = "--" + boundary + "\r\nContent-disposition:form-data; name=\"field1\"\r\n\r\n"
+                + "0123456789".repeat(100_000) + "\r\n--" + boundary + "--";
+        InputStream input = new ByteArrayInputStream(content.getBytes());
+
+        IOException e = assertThrows(IOException.class, () -> MultipartProcessor.process(boundary, input, part -> {
+            throw new IOException("Rejected");
+        }, new MultipartOptions().setReadAhead(2, null)));
+        assertEquals("Rejected", e.getMessage());
+
+        Thread.sleep(100);
+        int available = input.available();
+        Thread.sleep(100);
+        assertEquals(available, input.available());
+        assertTrue(available > 0);
+    }
+
+    @Test
+    void shouldParseWithinLimits() throws IOException {
+        String boundary = "---ZZZZ";
+        String content = "preamble\r\n--" + boundary + "\r\nContent-disposition: form-data; name=\"field1\"\r\n\r\n"
+                + "VALUE 1\r\n--" + boundary + "\r\nContent-disposition: form-data; name=\"field2\"\r\n\r\n"
+                + "VALUE 2\r\n--" + boundary + "--\r\nepilogue";
+        MultipartLimits limits = new MultipartLimits().setMaxHeaderLineLength(45).setMaxHeadersPerPart(1)
+                .setMaxParts(2).setMaxPartBytes(7).setMaxTotalBytes(content.length()).setMaxPreambleLength(10)
+                .setMaxEpilogueLength(10);
+        List<String> values = new ArrayList<>();
+
+        MultipartProcessor.process(boundary, new ByteArrayInputStream(content.getBytes()),
+                part -> values.add(part.readBodyText()), new MultipartOptions().setLimits(limits));
+
+        assertEquals(List.of("VALUE 1", "VALUE 2"), values);
+    }
+
+    @Test
+    void shouldEnforceLimits() {
+        String boundary = "---ZZZZ";
+        String content = "preamble\r\n--" + boundary + "\r\nContent-disposition: form-data; name=\"field1\"\r\n\r\n"
+                + "VALUE 1\r\n--" + boundary + "\r\nContent-disposition: form-data; name=\"field2\"\r\n\r\n"
+                + "VALUE 2\r\n--" + boundary + "--\r\nepilogue";
+
+        assertLimitExceeded(MultipartLimitException.Limit.HEADER_LINE_LENGTH, boundary, content,
+                new MultipartLimits().setMaxHeaderLineLength(44));
+        assertLimitExceeded(MultipartLimitException.Limit.PARTS, boundary, content,
+                new MultipartLimits().setMaxParts(1));
+        assertLimitExceeded(MultipartLimitException.Limit.PART_BYTES, boundary, content,
+                new MultipartLimits().setMaxPartBytes(6));
+        assertLimitExceeded(MultipartLimitException.Limit.TOTAL_BYTES, boundary, content,
+                new MultipartLimits().setMaxTotalBytes(content.length() - 1));
+        assertLimitExceeded(MultipartLimitException.Limit.PREAMBLE_LENGTH, boundary, content,
+                new MultipartLimits().setMaxPreambleLength(9));
+        assertLimitExceeded(MultipartLimitException.Limit.EPILOGUE_LENGTH, boundary, content,
+                new MultipartLimits().setMaxEpilogueLength(9));
+        assertLimitExceeded(MultipartLimitException.Limit.HEADERS_PER_PART, boundary,
+                content.replace("\r\n\r\nVALUE 2", "\r\nContent-Type: text/plain\r\n\r\nVALUE 2"),
+                new MultipartLimits().setMaxHeadersPerPart(1));
+    }
+
+    @Test
+    void shouldStopReadingWhenLimitExceeded() {
+        String boundary = "---ZZZZ";
+        byte[] header = ("--" + boundary + "\r\nContent-disposition: form-data; name=\"field1\"; x=\"")
+                .getBytes(StandardCharsets.US_ASCII);
+        InputStream endless = new InputStream() {
+
+            private long position;
+
+            @Override
+            public int read() {
+                return position < header.length ? header[(int)position++] : 'x';
+            }
+
+        };
+        MultipartOptions options = new MultipartOptions()
+                .setLimits(new MultipartLimits().setMaxHeaderLineLength(1024));
+
+        MultipartLimitException e = assertThrows(MultipartLimitException.class,
+                () -> MultipartProcessor.process(boundary, endless, part -> {}, options));
+        assertEquals(MultipartLimitException.Limit.HEADER_LINE_LENGTH, e.getLimit());
+        assertEquals(1024, e.getMaxValue());
+    }
+
     @Test
     void shouldExtractBoundary() {
         String contentType = "multipart/form-data; boundary=----ABC";
@@ -195,5 +515,48 @@ class MultipartProcessorTest {
         return resultParts;
     }
 
+    private static void assertLimitExceeded(MultipartLimitException.Limit limit, String boundary, String content,
+            MultipartLimits limits) {
+        MultipartLimitException e = assertThrows(MultipartLimitException.class, () -> MultipartProcessor.process(
+                boundary, new ByteArrayInputStream(content.getBytes()), part -> part.getBodyStream().skip(100),
+                new MultipartOptions().setLimits(limits)));
+        assertEquals(limit, e.getLimit());
+    }
+
     private record ResultPart(Part part, String content) {}
+
+    private static class SlowStream extends InputStream {
+
+        private final InputStream content;
+        private final long delayMillis;
+
+        SlowStream(String content, long delayMillis) {
+            this.content = new ByteArrayInputStream(content.getBytes());
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return content.read();
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int read = read();
+            if (read == -1) {
+                return -1;
+            }
+            bytes[offset] = (byte)read;
+            return 1;
+        }
+
+    }
 }
\ No newline at end of file
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultipartReaderTest {
+
+    private static final String BOUNDARY = "---ZZZZ";
+
+    @Test
+    void shouldReadPartsOnDemand() throws IOException {
+        String content = field("metadata", "{\"size\":3}") + field("file", "ABC") + "--" + BOUNDARY + "--";
+
+        try (MultipartReader reader = new MultipartReader(BOUNDARY, new ByteArrayInputStream(content.getBytes()))) {
+            Part metadata = reader.nextPart();
+            assertEquals("metadata", metadata.getName());
+            assertEquals("{\"size\":3}", metadata.readBodyText());
+
+            Part file = reader.nextPart();
+            assertEquals("file", file.getName());
+            assertEquals("ABC", file.readBodyText());
+
+            assertNull(reader.nextPart());
+            assertNull(reader.nextPart());
+        }
+    }
+
+    @Test
+    void shouldSkipUnreadBodies() throws IOException {
+        String content = field("field1", "0123456789".repeat(2000)) + field("field2", "VALUE 2") + "--" + BOUNDARY
+                + "--";
+
+        try (MultipartReader reader = new MultipartReader(BOUNDARY, new ByteArrayInputStream(content.getBytes()))) {
+            Part first = reader.nextPart();
+            assertEquals('0', first.getBodyStream().read());
+
+            Part second = reader.nextPart();
+            assertEquals("field2", second.getName());
+            assertEquals("VALUE 2", second.readBodyText());
+            assertEquals(-1, first.getBodyStream().read());
+        }
+    }
+
+    @Test
+    void shouldNotReadBeforeAskedFor() throws IOException {
+        CountingStream input = new CountingStream(field("field1", "VALUE 1") + "--" + BOUNDARY + "--");
+
+        try (MultipartReader reader = new MultipartReader(BOUNDARY, input)) {
+            assertEquals(0, input.reads);
+            reader.nextPart();
+            assertTrue(input.reads > 0);
+        }
+    }
+
+    @Test
+    void shouldStreamPartsLazily() {
+        CountingStream input = new CountingStream(field("field1", "VALUE 1") + field("field2", "VALUE 2")
+                + field("field3", "0123456789".repeat(10_000)) + "--" + BOUNDARY + "--");
+
+        try (MultipartReader reader = new MultipartReader(BOUNDARY, input)) {
+            Optional<Part> found = reader.parts().filter(part -> "field2".equals(part.getName())).findFirst();
+
+            assertTrue(found.isPresent());
+            assertTrue(input.position < 1000);
+        }
+    }
+
+    @Test
+    void shouldStreamAllParts() {
+        String content = field("field1", "VALUE 1") + field("field2", "VALUE 2") + "--" + BOUNDARY + "--";
+
+        try (MultipartReader reader = new MultipartReader(BOUNDARY, new ByteArrayInputStream(content.getBytes()))) {
+            List<String> names = reader.parts().map(Part::getName).collect(Collectors.toList());
+
+            assertEquals(List.of("field1", "field2"), names);
+        }
+    }
+
+    @Test
+    void shouldWrapExceptionsInStream() {
+        String content = field("field1", "VALUE 1") + "--" + BOUNDARY + "XX";
+
+        try (MultipartReader reader = new MultipartReader(BOUNDARY, new ByteArrayInputStream(content.getBytes()))) {
+            assertThrows(UncheckedIOException.class, () -> reader.parts().count());
+        }
+    }
+
+    @Test
+    void shouldReleaseBudgetWhenClosed() throws IOException {
+        String content = field("field1", "VALUE 1") + "--" + BOUNDARY + "--";
+        MemoryBudget budget = new MemoryBudget(InputBuffer.DEFAULT_SIZE);
+
+        try (MultipartReader reader = new MultipartReader(BOUNDARY, new ByteArrayInputStream(content.getBytes()),
+                new MultipartOptions().setMemoryBudget(budget))) {
+            reader.nextPart();
+            assertEquals(InputBuffer.DEFAULT_SIZE, budget.getReserved());
+        }
+
+        assertEquals(0, budget.getReserved());
+    }
+
+    @Test
+    void shouldFailAfterClose() {
+        String content = field("field1", "VALUE 1") + "--" + BOUNDARY + "--";
+        MultipartReader reader = new MultipartReader(BOUNDARY, new ByteArrayInputStream(content.getBytes()));
+        reader.close();
+
+        assertThrows(IOException.class, reader::nextPart);
+    }
+
+    @Test
+    void shouldKeepInputFollowingChunkedBody() throws IOException {
+        String content = field("field1", "VALUE 1") + "--" + BOUNDARY + "--\r\n";
+        String chunked = Integer.toHexString(content.length()) + "\r\n" + content + "\r\n0\r\nX-Trailer: 1\r\n\r\n";
+        String next = "POST /next HTTP/1.1\r\nHost: example.com\r\n\r\n";
+        ByteArrayInputStream input = new ByteArrayInputStream((chunked + next).getBytes());
+        MultipartOptions options = new MultipartOptions().setChunkedTransferEncoding(true);
+
+        try (MultipartReader reader = new MultipartReader(BOUNDARY, input, options)) {
+            assertThrows(IllegalStateException.class, reader::getInputAfterBody);
+            assertEquals("VALUE 1", reader.nextPart().readBodyText());
+            assertNull(reader.nextPart());
+
+            assertEquals(next, new String(reader.getInputAfterBody().readAllBytes()));
+        }
+    }
+
+    private static String field(String name, String value) {
+        return "--" + BOUNDARY + "\r\nContent-disposition:form-data; name=\"" + name + "\"\r\n\r\n" + value + "\r\n";
+    }
+
+    private static class CountingStream extends InputStream {
+
+        private final byte[] content;
+        private int position;
+        private int reads;
+
+        CountingStream(String content) {
+            this.content = content.getBytes();
+        }
+
+        @Override
+        public int read() {
+            reads++;
+            return position < content.length ? content[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            reads++;
+            if (position == content.length) {
+                return -1;
+            }
+            int count = Math.min(length, Math.min(100, content.length - position));
+            System.arraycopy(content, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+    }
+
+}
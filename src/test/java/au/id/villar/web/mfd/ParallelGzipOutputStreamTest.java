@@ -0,0 +1,157 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelGzipOutputStreamTest {
+
+    @Test
+    void shouldProduceStandardGzip() throws IOException {
+        byte[] data = createData(100_000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream gzip = new ParallelGzipOutputStream(compressed, executor, 4096, 3,
+                Deflater.DEFAULT_COMPRESSION)) {
+            gzip.write(data, 0, 1000);
+            gzip.write(data[1000]);
+            gzip.write(data, 1001, data.length - 1001);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertArrayEquals(data, gunzip(compressed.toByteArray()));
+        assertTrue(compressed.size() < data.length / 2);
+    }
+
+    @Test
+    void shouldReserveBlocksFromMemoryBudget() throws IOException {
+        byte[] data = createData(100_000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        MemoryBudget budget = new MemoryBudget(2 * 4096);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream gzip = new ParallelGzipOutputStream(compressed, executor, 4096, 8,
+                Deflater.DEFAULT_COMPRESSION, budget)) {
+            gzip.write(data);
+            assertTrue(budget.getReserved() <= 2 * 4096);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertArrayEquals(data, gunzip(compressed.toByteArray()));
+        assertEquals(0, budget.getReserved());
+    }
+
+    @Test
+    void shouldNotWriteNorLeakBlocksAfterFailure() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        MemoryBudget budget = new MemoryBudget(16 * 4096);
+        int[] writes = new int[1];
+        OutputStream failing = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte)b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                if (++writes[0] > 1) {
+                    throw new IOException("Disk full");
+                }
+            }
+
+        };
+        try {
+            ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(failing, executor, 4096, 8,
+                    Deflater.DEFAULT_COMPRESSION, budget);
+            gzip.write(createData(5 * 4096));
+
+            assertEquals("Disk full", assertThrows(IOException.class, gzip::finish).getMessage());
+            gzip.finish();
+            gzip.close();
+            assertEquals(2, writes[0]);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, budget.getReserved());
+    }
+
+    @Test
+    void shouldCompressEmptyInput() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(compressed, Runnable::run).close();
+
+        assertArrayEquals(new byte[0], gunzip(compressed.toByteArray()));
+    }
+
+    @Test
+    void shouldCompressPartBodies() throws IOException {
+        String boundary = "---ZZZZ";
+        String body = "0123456789 some text to compress\r\n".repeat(5000);
+        String content = "--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a.txt\""
+                + "\r\n\r\n" + body + "\r\n--" + boundary + "--";
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        try {
+            MultipartProcessor.process(boundary, new ByteArrayInputStream(content.getBytes()), part -> {
+                try (OutputStream gzip = new ParallelGzipOutputStream(compressed, executor, 8192, 2, 6)) {
+                    part.getBodyStream().transferTo(gzip);
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(body, new String(gunzip(compressed.toByteArray())));
+    }
+
+    private static byte[] createData(int length) {
+        Random random = new Random(1);
+        String[] words = {"multipart", "form", "data", "boundary", "part", "header", "body", "\r\n"};
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while (data.size() < length) {
+            byte[] word = words[random.nextInt(words.length)].getBytes();
+            data.write(word, 0, word.length);
+            data.write(random.nextInt(256));
+        }
+        return data.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        try (GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return input.readAllBytes();
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParallelMultipartProcessorTest {
+
+    private static final String BOUNDARY = "---ZZZZ";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void shouldReportSamePartsAsSequentialInOrder() throws IOException {
+        String content = createContent();
+        Path file = store(content);
+        List<String> sequential = new ArrayList<>();
+        List<String> parallel = new ArrayList<>();
+
+        MultipartProcessor.process(BOUNDARY, new ByteArrayInputStream(content.getBytes()),
+                part -> sequential.add(describe(part)));
+        ParallelMultipartProcessor.process(BOUNDARY, file, ForkJoinPool.commonPool(),
+                part -> parallel.add(describe(part)), true, 64);
+
+        assertEquals(20, sequential.size());
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    void shouldReportSamePartsAsSequentialConcurrently() throws IOException {
+        String content = createContent();
+        Path file = store(content);
+        List<String> sequential = new ArrayList<>();
+        Map<String, String> parallel = new ConcurrentHashMap<>();
+
+        MultipartProcessor.process(BOUNDARY, new ByteArrayInputStream(content.getBytes()),
+                part -> sequential.add(describe(part)));
+        ParallelMultipartProcessor.process(BOUNDARY, file, new ForkJoinPool(4),
+                part -> parallel.put(part.getName(), describe(part)));
+
+        assertEquals(sequential.size(), parallel.size());
+        for (String description : sequential) {
+            assertTrue(parallel.containsValue(description));
+        }
+    }
+
+    @Test
+    void shouldIgnorePreambleAndEpilogue() throws IOException {
+        String content = "preamble\r\n--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\n"
+                + "VALUE\r\n--" + BOUNDARY + "--\r\n--" + BOUNDARY + "\r\nepilogue";
+        List<String> values = Collections.synchronizedList(new ArrayList<>());
+
+        ParallelMultipartProcessor.processInOrder(BOUNDARY, store(content), ForkJoinPool.commonPool(),
+                part -> values.add(part.readBodyText()));
+
+        assertEquals(List.of("VALUE"), values);
+    }
+
+    @Test
+    void shouldPropagateListenerExceptions() throws IOException {
+        Path file = store(createContent());
+
+        assertThrows(IOException.class, () -> ParallelMultipartProcessor.process(BOUNDARY, file,
+                ForkJoinPool.commonPool(), part -> {
+                    throw new IOException("listener failure");
+                }));
+    }
+
+    @Test
+    void shouldFailOnTruncatedBody() throws IOException {
+        String content = createContent();
+        Path file = store(content.substring(0, content.length() / 2));
+
+        assertThrows(IOException.class, () -> ParallelMultipartProcessor.process(BOUNDARY, file,
+                ForkJoinPool.commonPool(), part -> {}, true, 64));
+    }
+
+    private String createContent() {
+        StringBuilder content = new StringBuilder("--").append(BOUNDARY);
+        for (int x = 0; x < 20; x++) {
+            content.append("\r\nContent-Disposition: form-data; name=\"field").append(x).append("\"\r\n\r\n")
+                    .append(("value " + x + "\r\n--" + BOUNDARY.substring(0, 4) + "\r\n").repeat(x * 7))
+                    .append("\r\n--").append(BOUNDARY);
+        }
+        return content.append("--\r\n").toString();
+    }
+
+    private Path store(String content) throws IOException {
+        Path file = tempDir.resolve("body");
+        Files.writeString(file, content);
+        return file;
+    }
+
+    private static String describe(Part part) throws IOException {
+        InputStream body = part.getBodyStream();
+        return part.getName() + "|" + part.getHeaderNames() + "|" + new String(body.readAllBytes());
+    }
+
+}
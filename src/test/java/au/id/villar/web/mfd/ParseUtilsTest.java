@@ -38,4 +38,12 @@ class ParseUtilsTest {
         assertEquals("---ABCDEF", keyValue);
     }
 
-}
\ No newline at end of file
+    @Test
+    void shouldGetFieldWithoutSpaceAfterSemicolon() {
+        String headerValue = "multipart/form-data;boundary=---ABCDEF;charset=UTF-8";
+        String keyValue = ParseUtils.getValueForKey("boundary", headerValue);
+
+        assertEquals("---ABCDEF", keyValue);
+    }
+
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PartTeeTest {
+
+    private static final String BOUNDARY = "---ZZZZ";
+    private static final String BODY = "0123456789\r\n--".repeat(10_000);
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void shouldDeliverBodyToAllSinks() throws IOException {
+        ByteArrayOutputStream inline = new ByteArrayOutputStream();
+        ByteArrayOutputStream async1 = new ByteArrayOutputStream();
+        ByteArrayOutputStream async2 = new ByteArrayOutputStream();
+        List<PartTee.Result> results = new ArrayList<>();
+
+        process(part -> results.addAll(part.tee()
+                .addSink(inline)
+                .addSink(async1, 2, PartTee.LagPolicy.BLOCK)
+                .addSink(async2, 4, PartTee.LagPolicy.SPILL)
+                .transfer()));
+
+        assertEquals(BODY, inline.toString());
+        assertEquals(BODY, async1.toString());
+        assertEquals(BODY, async2.toString());
+        assertEquals(3, results.size());
+        for (PartTee.Result result : results) {
+            assertTrue(result.isSuccessful());
+            assertNull(result.getError());
+            assertEquals(BODY.length(), result.getBytesWritten());
+        }
+    }
+
+    @Test
+    void shouldNotAffectOtherSinksWhenOneFails() throws IOException {
+        OutputStream failing = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Sink broken");
+            }
+
+        };
+        ByteArrayOutputStream inline = new ByteArrayOutputStream();
+        ByteArrayOutputStream async = new ByteArrayOutputStream();
+        List<PartTee.Result> results = new ArrayList<>();
+
+        process(part -> results.addAll(part.tee()
+                .addSink(failing)
+                .addSink(failing, 2, PartTee.LagPolicy.BLOCK)
+                .addSink(inline)
+                .addSink(async, 2, PartTee.LagPolicy.BLOCK)
+                .transfer()));
+
+        assertEquals("Sink broken", results.get(0).getError().getMessage());
+        assertEquals("Sink broken", results.get(1).getError().getMessage());
+        assertTrue(results.get(2).isSuccessful());
+        assertTrue(results.get(3).isSuccessful());
+        assertEquals(BODY, inline.toString());
+        assertEquals(BODY, async.toString());
+    }
+
+    @Test
+    void shouldReportUncheckedExceptionOfInlineSink() throws IOException {
+        OutputStream failing = new OutputStream() {
+
+            @Override
+            public void write(int b) {
+                throw new IllegalStateException("Sink broken");
+            }
+
+        };
+        ByteArrayOutputStream inline = new ByteArrayOutputStream();
+        List<PartTee.Result> results = new ArrayList<>();
+
+        process(part -> results.addAll(part.tee().addSink(failing).addSink(inline).transfer()));
+
+        assertFalse(results.get(0).isSuccessful());
+        assertEquals("Sink broken", results.get(0).getError().getCause().getMessage());
+        assertTrue(results.get(1).isSuccessful());
+        assertEquals(BODY, inline.toString());
+    }
+
+    @Test
+    void shouldReportUncheckedExceptionOfAsyncSink() throws IOException {
+        OutputStream failing = new OutputStream() {
+
+            @Override
+            public void write(int b) {
+                throw new UncheckedIOException(new IOException("Sink broken"));
+            }
+
+        };
+        ByteArrayOutputStream async = new ByteArrayOutputStream();
+        List<PartTee.Result> results = new ArrayList<>();
+
+        process(part -> results.addAll(part.tee()
+                .addSink(failing, 2, PartTee.LagPolicy.BLOCK)
+                .addSink(async, 2, PartTee.LagPolicy.BLOCK)
+                .transfer()));
+
+        assertFalse(results.get(0).isSuccessful());
+        assertEquals(0, results.get(0).getBytesWritten());
+        assertEquals("Sink broken", results.get(0).getError().getMessage());
+        assertTrue(results.get(1).isSuccessful());
+        assertEquals(BODY, async.toString());
+    }
+
+    @Test
+    void shouldSpillWhenSinkLags() throws IOException {
+        CountDownLatch bodyRead = new CountDownLatch(1);
+        ByteArrayOutputStream lagging = new ByteArrayOutputStream();
+        List<PartTee.Result> results = new ArrayList<>();
+
+        process(part -> results.addAll(part.tee()
+                .addSink(new GatedOutputStream(lagging, bodyRead), 1, PartTee.LagPolicy.SPILL)
+                .addSink(new LatchOnLength(bodyRead))
+                .setSpillDirectory(tempDir)
+                .transfer()));
+
+        assertEquals(BODY, lagging.toString());
+        assertTrue(results.get(0).isSuccessful());
+        assertTrue(results.get(0).getBytesSpilled() > 0);
+        assertEquals(BODY.length(), results.get(0).getBytesWritten());
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void shouldFailSinkWhenItLags() throws IOException {
+        CountDownLatch bodyRead = new CountDownLatch(1);
+        ByteArrayOutputStream lagging = new ByteArrayOutputStream();
+        ByteArrayOutputStream fast = new ByteArrayOutputStream();
+        List<PartTee.Result> results = new ArrayList<>();
+
+        process(part -> results.addAll(part.tee()
+                .addSink(new GatedOutputStream(lagging, bodyRead), 1, PartTee.LagPolicy.FAIL)
+                .addSink(fast, 64, PartTee.LagPolicy.FAIL)
+                .addSink(new LatchOnLength(bodyRead))
+                .transfer()));
+
+        assertFalse(results.get(0).isSuccessful());
+        assertTrue(results.get(0).getBytesWritten() < BODY.length());
+        assertTrue(results.get(1).isSuccessful());
+        assertEquals(BODY, fast.toString());
+    }
+
+    @Test
+    void shouldReserveQueuedCopiesFromMemoryBudget() throws IOException {
+        MemoryBudget budget = new MemoryBudget(2 * InputBuffer.DEFAULT_SIZE);
+        long[] maxReserved = new long[1];
+        ByteArrayOutputStream async = new ByteArrayOutputStream();
+        OutputStream tracking = new OutputStream() {
+
+            @Override
+            public void write(int b) {
+                write(new byte[] {(byte)b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                maxReserved[0] = Math.max(maxReserved[0], budget.getReserved());
+                async.write(bytes, offset, length);
+            }
+
+        };
+        List<PartTee.Result> results = new ArrayList<>();
+
+        process(part -> results.addAll(part.tee()
+                .addSink(tracking, 64, PartTee.LagPolicy.BLOCK)
+                .setMemoryBudget(budget)
+                .transfer()));
+
+        assertTrue(results.get(0).isSuccessful());
+        assertEquals(BODY, async.toString());
+        assertTrue(maxReserved[0] > 0);
+        assertEquals(0, budget.getReserved());
+    }
+
+    @Test
+    void shouldApplyLagPolicyWhenMemoryBudgetIsExhausted() throws IOException {
+        // the spilling sink may have to wait for the failed one to give its copies back to read its file back
+        MemoryBudget budget = new MemoryBudget(64 * 1024, Duration.ofSeconds(5));
+        CountDownLatch bodyRead = new CountDownLatch(1);
+        ByteArrayOutputStream spilling = new ByteArrayOutputStream();
+        ByteArrayOutputStream failing = new ByteArrayOutputStream();
+        List<PartTee.Result> results = new ArrayList<>();
+
+        process(part -> results.addAll(part.tee()
+                .addSink(new GatedOutputStream(spilling, bodyRead), 64, PartTee.LagPolicy.SPILL)
+                .addSink(new GatedOutputStream(failing, bodyRead), 64, PartTee.LagPolicy.FAIL)
+                .addSink(new LatchOnLength(bodyRead))
+                .setMemoryBudget(budget)
+                .setSpillDirectory(tempDir)
+                .transfer()));
+
+        assertTrue(results.get(0).isSuccessful());
+        assertTrue(results.get(0).getBytesSpilled() > 0);
+        assertEquals(BODY, spilling.toString());
+        assertFalse(results.get(1).isSuccessful());
+        assertTrue(results.get(1).getError().getMessage().contains("memory budget"));
+        assertEquals(0, budget.getReserved());
+    }
+
+    @Test
+    void shouldOnlyTransferOnce() throws IOException {
+        process(part -> {
+            PartTee tee = part.tee().addSink(OutputStream.nullOutputStream());
+            tee.transfer();
+            assertThrows(IOException.class, tee::transfer);
+        });
+    }
+
+    @Test
+    void shouldThrowIfBodyCantBeRead() {
+        String content = "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"\r\n\r\n" + BODY;
+        ByteArrayOutputStream async = new ByteArrayOutputStream();
+
+        assertThrows(IOException.class, () -> MultipartProcessor.process(BOUNDARY,
+                new ByteArrayInputStream(content.getBytes()),
+                part -> part.tee().addSink(async, 2, PartTee.LagPolicy.BLOCK).transfer()));
+    }
+
+    private static void process(MultipartProcessorListener listener) throws IOException {
+        String content = "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a.txt\""
+                + "\r\n\r\n" + BODY + "\r\n--" + BOUNDARY + "--";
+        MultipartProcessor.process(BOUNDARY, new ByteArrayInputStream(content.getBytes()), listener);
+    }
+
+    private static class GatedOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final CountDownLatch gate;
+
+        GatedOutputStream(OutputStream out, CountDownLatch gate) {
+            this.out = out;
+            this.gate = gate;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            out.write(bytes, offset, length);
+        }
+
+    }
+
+    private static class LatchOnLength extends OutputStream {
+
+        private final CountDownLatch latch;
+        private long length;
+
+        LatchOnLength(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) {
+            length += count;
+            if (length == BODY.length()) {
+                latch.countDown();
+            }
+        }
+
+    }
+
+}
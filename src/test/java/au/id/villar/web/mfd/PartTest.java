@@ -21,7 +21,10 @@ import org.junit.jupiter.api.Test;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -82,6 +85,26 @@ class PartTest {
         assertEquals("my_file.txt", part.getFilename());
     }
 
+    @Test
+    void shouldExtractExtendedFilename() throws IOException {
+        Part part = Part.readPart(toStream("Content-Disposition: form-data; name=\"file1\"; filename=\"na.txt\"; "
+                + "filename*=UTF-8''na%C3%AFve.txt\r\n\r\n"), EMPTY);
+
+        assertEquals("file1", part.getName());
+        assertEquals("na\u00efve.txt", part.getFilename());
+    }
+
+    @Test
+    void shouldRetrieveHeaderParameters() throws IOException {
+        Part part = Part.readPart(toStream("Content-Type: text/plain; charset=\"ISO-8859-1\"; format=flowed\r\n\r\n"),
+                EMPTY);
+
+        assertEquals("ISO-8859-1", part.getHeaderParameter("content-type", "charset"));
+        assertEquals("flowed", part.getHeaderParameter("Content-Type", "FORMAT"));
+        assertNull(part.getHeaderParameter("content-type", "boundary"));
+        assertNull(part.getHeaderParameter("content-disposition", "name"));
+    }
+
     @Test
     void shouldUnescapeFieldValues() throws IOException {
         Part part = Part.readPart(
@@ -121,6 +144,82 @@ class PartTest {
         assertEquals("TESTING_DATA", part.readBodyText(Charset.defaultCharset()));
     }
 
+    @Test
+    void shouldDecodeCharsSplitAcrossReads() throws IOException {
+        String text = "h\u00e9llo w\u00f6rld \u20ac \uD83D\uDE00!";
+        byte[] header = "Content-Disposition: form-data; name=\"field1\"\r\n\r\n".getBytes();
+        byte[] body = (text + "\r\n----XX").getBytes(StandardCharsets.UTF_8);
+        byte[] content = new byte[header.length + body.length];
+        System.arraycopy(header, 0, content, 0, header.length);
+        System.arraycopy(body, 0, content, header.length, body.length);
+        Part part = Part.readPart(new ByteArrayInputStream(content),
+                new int[] {'\r', '\n', '-', '-', '-', '-', 'X', 'X'});
+
+        assertEquals(text, part.readBodyText());
+    }
+
+    @Test
+    void shouldUseCharsetFromContentType() throws IOException {
+        byte[] content = ("Content-Disposition: form-data; name=\"field1\"\r\n"
+                + "Content-Type: text/plain; charset=ISO-8859-1\r\n\r\nv\u00e4lue\r\n----XX")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        Part part = Part.readPart(new ByteArrayInputStream(content),
+                new int[] {'\r', '\n', '-', '-', '-', '-', 'X', 'X'});
+
+        assertEquals(StandardCharsets.ISO_8859_1, part.getCharset());
+        assertEquals("v\u00e4lue", part.readBodyText());
+    }
+
+    @Test
+    void shouldFailIfBodyTextIsTooLong() throws IOException {
+        Part part = Part.readPart(
+                toStream("Content-Disposition: form-data; name=\"field1\"\r\n\r\nTESTING_DATA\r\n----XX"),
+                new int[] {'\r', '\n', '-', '-', '-', '-', 'X', 'X'});
+
+        assertThrows(IOException.class, () -> part.readBodyText(StandardCharsets.UTF_8, 11));
+    }
+
+    @Test
+    void shouldReadBodyTextUpToMaxLength() throws IOException {
+        Part part = Part.readPart(
+                toStream("Content-Disposition: form-data; name=\"field1\"\r\n\r\nTESTING_DATA\r\n----XX"),
+                new int[] {'\r', '\n', '-', '-', '-', '-', 'X', 'X'});
+
+        assertEquals("TESTING_DATA", part.readBodyText(StandardCharsets.UTF_8, 12));
+    }
+
+    @Test
+    void shouldNotTrustDeclaredLengthToSizeBodyText() throws IOException {
+        String body = "0123456789".repeat(2000);
+        String content = "------XX\r\nContent-Disposition: form-data; name=\"field1\"\r\nContent-Length: 1500000000"
+                + "\r\n\r\n" + body + "\r\n------XX--";
+        StringBuilder text = new StringBuilder();
+
+        MultipartProcessor.process("----XX", toStream(content), part -> text.append(part.readBodyText()));
+
+        assertEquals(body, text.toString());
+    }
+
+    @Test
+    void shouldReadBodyThroughChannel() throws IOException {
+        Part part = Part.readPart(
+                toStream("Content-Disposition: form-data; name=\"field1\"\r\n\r\nTESTING_DATA\r\n----XX"),
+                new int[] {'\r', '\n', '-', '-', '-', '-', 'X', 'X'});
+        ByteBuffer buffer = ByteBuffer.allocateDirect(5);
+        StringBuilder builder = new StringBuilder();
+        try (ReadableByteChannel channel = part.getBodyChannel()) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    builder.append((char)buffer.get());
+                }
+                buffer.clear();
+            }
+        }
+
+        assertEquals("TESTING_DATA", builder.toString());
+    }
+
     private InputStream toStream(String header) {
         return new ByteArrayInputStream(header.getBytes());
     }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2023 Rafael Villar Villar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package au.id.villar.web.mfd;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReadAheadInputStreamTest {
+
+    @Test
+    void shouldDeliverAllBytesInOrder() throws IOException {
+        byte[] content = new byte[100_000];
+        new Random(3).nextBytes(content);
+
+        try (InputStream input = new ReadAheadInputStream(new ByteArrayInputStream(content), 1000, 3, null)) {
+            assertEquals(content[0] & 0xFF, input.read());
+            byte[] rest = input.readAllBytes();
+
+            assertEquals(content.length - 1, rest.length);
+            for (int x = 1; x < content.length; x++) {
+                assertEquals(content[x], rest[x - 1]);
+            }
+            assertEquals(-1, input.read());
+        }
+    }
+
+    @Test
+    void shouldPropagateExceptionAfterPrecedingBytes() throws IOException {
+        InputStream failing = new InputStream() {
+
+            private int reads;
+
+            @Override
+            public int read() {
+                return -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (reads++ == 0) {
+                    bytes[offset] = 'A';
+                    return 1;
+                }
+                throw new IOException("Connection reset");
+            }
+
+        };
+
+        try (InputStream input = new ReadAheadInputStream(failing, 16, 2, null)) {
+            assertEquals('A', input.read());
+            IOException e = assertThrows(IOException.class, input::read);
+            assertEquals("Connection reset", e.getMessage());
+        }
+    }
+
+    @Test
+    void shouldEndCompanionOnceReadReturnsAfterClose() throws InterruptedException, IOException {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        boolean[] interrupted = new boolean[1];
+        InputStream blocking = new InputStream() {
+
+            @Override
+            public int read() {
+                return -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    interrupted[0] = true;
+                }
+                return length;
+            }
+
+        };
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ReadAheadInputStream input = new ReadAheadInputStream(blocking, 16, 2, executor);
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+
+        input.close();
+        release.countDown();
+        executor.shutdown();
+
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertFalse(interrupted[0]);
+        assertEquals(-1, input.read());
+    }
+
+    @Test
+    void shouldEndCompanionWaitingForBuffersOnClose() throws InterruptedException {
+        CountDownLatch filled = new CountDownLatch(2);
+        InputStream endless = new InputStream() {
+
+            @Override
+            public int read() {
+                return 0;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                filled.countDown();
+                return length;
+            }
+
+        };
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ReadAheadInputStream input = new ReadAheadInputStream(endless, 16, 2, executor);
+        assertTrue(filled.await(5, TimeUnit.SECONDS));
+
+        input.close();
+        executor.shutdown();
+
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void shouldNotCloseInterruptibleUpstreamOnClose() throws InterruptedException, IOException {
+        Pipe pipe = Pipe.open();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            ReadAheadInputStream input = new ReadAheadInputStream(Channels.newInputStream(pipe.source()), 16, 2,
+                    executor);
+            // give the companion time to block reading from the pipe
+            Thread.sleep(100);
+
+            input.close();
+            pipe.sink().write(ByteBuffer.wrap(new byte[] {1}));
+            executor.shutdown();
+
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+            assertTrue(pipe.source().isOpen());
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+
+}